@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Compares two JMH result files written with {@code -rf json}, and fails if any benchmark
+ * regressed by more than a threshold in either its score or its allocation rate.
+ *
+ * Usage: {@code CompareResults <baseline.json> <candidate.json> [thresholdPercent]}
+ */
+public class CompareResults {
+
+  private static final String ALLOCATION_METRIC = "gc.alloc.rate.norm";
+
+  private static final double DEFAULT_THRESHOLD_PERCENT = 5;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: CompareResults <baseline.json> <candidate.json> [thresholdPercent]");
+      System.exit(2);
+    }
+    Map<String, Result> baseline = read(new File(args[0]));
+    Map<String, Result> candidate = read(new File(args[1]));
+    double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD_PERCENT;
+
+    int regressions = 0;
+    System.out.println(String.format("%-90s %14s %14s %9s %12s %12s %9s",
+        "Benchmark", "Baseline", "Candidate", "Change", "Alloc B/op", "Alloc B/op", "Change"));
+    for (Map.Entry<String, Result> entry : candidate.entrySet()) {
+      Result before = baseline.get(entry.getKey());
+      Result after = entry.getValue();
+      if (before == null) {
+        System.out.println(String.format("%-90s %14s %14.3f", entry.getKey(), "-", after.score));
+        continue;
+      }
+      // Positive changes are always improvements, whichever direction the mode counts as better
+      double scoreChange = percentChange(before.score, after.score);
+      double change = after.higherIsBetter ? scoreChange : 0.0 - scoreChange;
+      double allocationChange = 0.0 - percentChange(before.allocation, after.allocation);
+      boolean regressed = change < -threshold || allocationChange < -threshold;
+      if (regressed) {
+        regressions++;
+      }
+      System.out.println(String.format("%-90s %14.3f %14.3f %+8.1f%% %12.1f %12.1f %+8.1f%%%s",
+          entry.getKey(), before.score, after.score, change, before.allocation, after.allocation,
+          allocationChange, regressed ? "  REGRESSION" : ""));
+    }
+    if (regressions > 0) {
+      System.out.println(regressions + " benchmark(s) regressed by more than " + threshold + "%");
+      System.exit(1);
+    }
+  }
+
+  private static double percentChange(double before, double after) {
+    return before == 0 ? 0 : 100 * (after - before) / before;
+  }
+
+  private static Map<String, Result> read(File file) throws IOException {
+    JsonArray benchmarks = new JsonParser().parse(Files.toString(file, Charsets.UTF_8)).getAsJsonArray();
+    Map<String, Result> results = new LinkedHashMap<String, Result>();
+    for (JsonElement element : benchmarks) {
+      JsonObject benchmark = element.getAsJsonObject();
+      results.put(name(benchmark), new Result(benchmark));
+    }
+    return results;
+  }
+
+  private static String name(JsonObject benchmark) {
+    StringBuilder name = new StringBuilder(benchmark.get("benchmark").getAsString());
+    if (benchmark.has("params")) {
+      Map<String, String> params = new TreeMap<String, String>();
+      for (Map.Entry<String, JsonElement> param : benchmark.getAsJsonObject("params").entrySet()) {
+        params.put(param.getKey(), param.getValue().getAsString());
+      }
+      name.append(params);
+    }
+    return name.append(" (").append(benchmark.get("mode").getAsString()).append(')').toString();
+  }
+
+  private static class Result {
+    private final double score;
+    private final double allocation;
+    private final boolean higherIsBetter;
+
+    Result(JsonObject benchmark) {
+      score = benchmark.getAsJsonObject("primaryMetric").get("score").getAsDouble();
+      higherIsBetter = "thrpt".equals(benchmark.get("mode").getAsString());
+      double allocationScore = 0;
+      if (benchmark.has("secondaryMetrics")) {
+        for (Map.Entry<String, JsonElement> metric : benchmark.getAsJsonObject("secondaryMetrics").entrySet()) {
+          // Older JMH versions prefix profiler metrics with a middle dot
+          if (metric.getKey().endsWith(ALLOCATION_METRIC)) {
+            allocationScore = metric.getValue().getAsJsonObject().get("score").getAsDouble();
+          }
+        }
+      }
+      allocation = allocationScore;
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import java.util.concurrent.TimeUnit;
+
+import kafka.javaapi.producer.Producer;
+import kafka.producer.KeyedMessage;
+import kafka.producer.ProducerConfig;
+import kafka.producer.async.EventHandler;
+
+import org.apache.jmeter.config.Arguments;
+import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterVariables;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import scala.collection.Seq;
+
+/**
+ * Benchmarks {@link KafkaProducerSampler#runTest} against in-process producers whose event
+ * handler discards every message, so only the sampler and client-side costs are measured, and
+ * against the {@link Transports} which stand in for Kafka, without its client.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KafkaProducerSamplerBenchmark {
+
+  private static final String MESSAGE = "{\"siteId\":\"site1\",\"timestamp\":1405632000000,"
+      + "\"pageIds\":[123,234],\"tagIds\":[123,234,345,456,567]}";
+
+  @Param({ "sync", "async" })
+  public String producerType;
+
+  @Param({ "none", "gzip" })
+  public String compressionCodec;
+
+  @Param({ "kafka", "null", "queue" })
+  public String transport;
+
+  private KafkaProducerSampler sampler;
+  private JavaSamplerContext context;
+
+  @Setup
+  public void setUp() {
+    ProducerPool.producerFactory = new ProducerPool.ProducerFactory() {
+      @Override
+      public Producer<Long, byte[]> create(ProducerConfig config) {
+        return new Producer<Long, byte[]>(new kafka.producer.Producer<Long, byte[]>(config, new DiscardingEventHandler()));
+      }
+    };
+    JMeterContextService.getContext().setVariables(new JMeterVariables());
+
+    Arguments arguments = new Arguments();
+    arguments.addArgument("kafka_brokers", "localhost:9092");
+    arguments.addArgument("kafka_topic", "benchmark");
+    arguments.addArgument("kafka_key", "1");
+    arguments.addArgument("kafka_message", MESSAGE);
+    arguments.addArgument("kafka_producer_type", producerType);
+    arguments.addArgument("kafka_compression_codec", compressionCodec);
+    arguments.addArgument("kafka_queue_buffering_max_ms", "1");
+    arguments.addArgument("kafka_transport", transport);
+    context = new JavaSamplerContext(arguments);
+
+    sampler = new KafkaProducerSampler();
+    sampler.setupTest(context);
+  }
+
+  @TearDown
+  public void tearDown() {
+    sampler.teardownTest(context);
+  }
+
+  @Benchmark
+  public SampleResult runTest() {
+    return sampler.runTest(context);
+  }
+
+  private static class DiscardingEventHandler implements EventHandler<Long, byte[]> {
+    @Override
+    public void handle(Seq<KeyedMessage<Long, byte[]>> events) {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen.example;
+
+import java.util.Random;
+
+/**
+ * Builds synthetic Tagserve Load Descriptions of representative sizes for benchmarks.
+ */
+public final class LoadDescriptions {
+
+  /**
+   * Two sites with two pages each, like {@code config1.json}.
+   */
+  public static final String SMALL = "small";
+
+  /**
+   * Ten thousand sites with ten pages each.
+   */
+  public static final String SITES_10K = "sites10k";
+
+  /**
+   * Ten sites with ten thousand pages each, for a hundred thousand pages in total.
+   */
+  public static final String PAGES_100K = "pages100k";
+
+  private static final int TAGS_PER_PAGE = 4;
+
+  private LoadDescriptions() {}
+
+  /**
+   * @param size one of {@link #SMALL}, {@link #SITES_10K} or {@link #PAGES_100K}
+   * @return the JSON Load Description of that size
+   */
+  public static String forSize(String size) {
+    if (SMALL.equals(size)) {
+      return generate(2, 2, 0.5, 1L);
+    } else if (SITES_10K.equals(size)) {
+      return generate(10000, 10, 0.2, 1L);
+    } else if (PAGES_100K.equals(size)) {
+      return generate(10, 10000, 0.001, 1L);
+    }
+    throw new IllegalArgumentException("Unknown Load Description size: " + size);
+  }
+
+  /**
+   * Generates a Load Description with uniformly random site weights and page weights averaging
+   * {@code meanPageWeight}, so that requests match about {@code pages * meanPageWeight} pages.
+   */
+  public static String generate(int sites, int pages, double meanPageWeight, long seed) {
+    Random random = new Random(seed);
+    double[] siteWeights = new double[sites];
+    double sum = 0;
+    for (int i = 0; i < sites; i++) {
+      siteWeights[i] = random.nextDouble();
+      sum += siteWeights[i];
+    }
+    StringBuilder json = new StringBuilder("{");
+    long tag = 0;
+    for (int i = 0; i < sites; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append("\"site").append(i).append("\":{\"weight\":").append(siteWeights[i] / sum).append(",\"pages\":{");
+      for (int j = 0; j < pages; j++) {
+        if (j > 0) {
+          json.append(',');
+        }
+        json.append('"').append(j).append("\":{\"weight\":").append(2 * meanPageWeight * random.nextDouble());
+        json.append(",\"tags\":[");
+        for (int k = 0; k < TAGS_PER_PAGE; k++) {
+          if (k > 0) {
+            json.append(',');
+          }
+          json.append(tag++ % 100000);
+        }
+        json.append("]}");
+      }
+      json.append("}}");
+    }
+    return json.append('}').toString();
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen.example;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import co.signal.loadgen.RandomStreams;
+
+/**
+ * Benchmarks each {@link TagRequestMetrics} marshaller on the same pre-generated messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-D" + RandomStreams.SEED_PROPERTY + "=42")
+public class MarshallerBenchmark {
+
+  private static final int MESSAGES = 1024;
+
+  @Param({ LoadDescriptions.SMALL, LoadDescriptions.PAGES_100K })
+  public String size;
+
+  private final TagRequestMetrics[] messages = new TagRequestMetrics[MESSAGES];
+  private int next;
+
+  private final TagRequestMetricsJsonMarshaller gson = new TagRequestMetricsJsonMarshaller(new Gson());
+  private final TagRequestMetricsJsonEncoder json = new TagRequestMetricsJsonEncoder();
+  private final TagRequestMetricsProtobufMarshaller protobuf = new TagRequestMetricsProtobufMarshaller();
+  private final TagRequestMetricsAvroMarshaller avro = new TagRequestMetricsAvroMarshaller();
+
+  @Setup
+  public void setUp() {
+    TagserveLoadGenerator generator = new TagserveLoadGenerator(LoadDescriptions.forSize(size));
+    for (int i = 0; i < MESSAGES; i++) {
+      messages[i] = generator.nextModel();
+    }
+  }
+
+  private TagRequestMetrics nextMessage() {
+    return messages[next++ & (MESSAGES - 1)];
+  }
+
+  @Benchmark
+  public byte[] gson() {
+    return gson.marshal(nextMessage()).getBytes(Charsets.UTF_8);
+  }
+
+  @Benchmark
+  public byte[] json() {
+    return json.marshal(nextMessage());
+  }
+
+  @Benchmark
+  public byte[] protobuf() {
+    return protobuf.marshal(nextMessage());
+  }
+
+  @Benchmark
+  public byte[] avro() {
+    return avro.marshal(nextMessage());
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen.example;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import co.signal.loadgen.RandomStreams;
+
+/**
+ * Benchmarks {@link TagserveLoadGenerator} message generation across Load Description sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-D" + RandomStreams.SEED_PROPERTY + "=42")
+public class TagserveLoadGeneratorBenchmark {
+
+  @Param({ LoadDescriptions.SMALL, LoadDescriptions.SITES_10K, LoadDescriptions.PAGES_100K })
+  public String size;
+
+  private TagserveLoadGenerator generator;
+
+  @Setup
+  public void setUp() {
+    generator = new TagserveLoadGenerator(LoadDescriptions.forSize(size));
+  }
+
+  @Benchmark
+  public TagRequestMetrics nextModel() {
+    return generator.nextModel();
+  }
+
+  @Benchmark
+  public byte[] nextMessageBytes() {
+    return generator.nextMessageBytes();
+  }
+
+  @Benchmark
+  public String nextMessage() {
+    return generator.nextMessage();
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The intended send times of an open-loop load, independent of how long each send takes.
+ *
+ * Sends are scheduled at a fixed rate, either evenly spaced or as a Poisson process. When sends
+ * fall behind schedule, later sends are not delayed to compensate, so latencies measured from
+ * the intended send time include the time spent waiting behind a slow broker. This corrects the
+ * coordinated omission of closed-loop load, where a stalled broker also stalls the load.
+ *
+ * @see "http://www.azulsystems.com/sites/default/files/images/HowNotToMeasureLatency_LLSummit_NYC_12Nov2013.pdf"
+ */
+class ArrivalSchedule {
+
+  static final String CONSTANT = "constant";
+  static final String POISSON = "poisson";
+
+  private final double intervalNanos;
+  private final Random random;
+  private final long baseMillis;
+  private final long baseNanos;
+
+  private double nextNanos;
+
+  /**
+   * @param ratePerSecond the target number of sends per second
+   * @param random the source of Poisson inter-arrival times, or {@code null} for evenly spaced sends
+   */
+  ArrivalSchedule(double ratePerSecond, Random random) {
+    Preconditions.checkArgument(ratePerSecond > 0, "Target rate must be positive");
+    this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+    this.random = random;
+    this.baseMillis = System.currentTimeMillis();
+    this.baseNanos = System.nanoTime();
+    this.nextNanos = baseNanos;
+  }
+
+  /**
+   * Returns the intended time of the next send and advances the schedule.
+   *
+   * @return the intended send time in {@link System#nanoTime()} units
+   */
+  long next() {
+    long intended = (long) nextNanos;
+    if (random == null) {
+      nextNanos += intervalNanos;
+    } else {
+      nextNanos += -Math.log1p(-random.nextDouble()) * intervalNanos;
+    }
+    return intended;
+  }
+
+  /**
+   * Wait until the intended time, returning immediately if it has already passed
+   * or if the thread is interrupted.
+   */
+  void awaitNanos(long intendedNanos) {
+    long remaining;
+    while ((remaining = intendedNanos - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+      LockSupport.parkNanos(remaining);
+    }
+  }
+
+  /**
+   * @return the wall-clock time in milliseconds corresponding to the given {@link System#nanoTime()}
+   */
+  long toMillis(long nanos) {
+    return baseMillis + TimeUnit.NANOSECONDS.toMillis(nanos - baseNanos);
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import kafka.producer.KeyedMessage;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Batches messages from a bounded queue into a synchronous {@link Transport} on a background thread.
+ *
+ * Kafka's own async producer never reports when a message is acknowledged, so instead we
+ * drive a synchronous producer with batched sends. Each batch is sent once it is full or once
+ * its oldest message has lingered for the configured time, and every message in the batch is
+ * completed with the time at which the broker acknowledged the whole request, along with its
+ * share of the batch's estimated compressed size.
+ *
+ * Should anything but the send itself fail, such as the compression codec failing to load, the
+ * producer is broken for good: the batch and every message enqueued after it are completed with
+ * the failure, and {@link #send} fails at once rather than filling the queue.
+ */
+class BatchingProducer {
+
+  private static final Logger log = LoggingManager.getLoggerForClass();
+
+  private static final long POLL_MILLIS = 100;
+
+  private final Transport transport;
+  private final BlockingQueue<PendingMessage> queue;
+  private final int batchSize;
+  private final long lingerNanos;
+  private final Compression.Estimator compression;
+  private final Thread sender;
+
+  private volatile boolean running = true;
+  private volatile Exception failure;
+
+  /**
+   * @param transport a synchronous transport; the caller remains responsible for closing it
+   * @param batchSize the maximum number of messages sent in one request
+   * @param lingerMillis the maximum time a message waits for its batch to fill
+   * @param queueDepth the maximum number of unsent messages before {@link #send} blocks
+   * @param compression estimates the compressed size of each batch
+   */
+  BatchingProducer(Transport transport, int batchSize, long lingerMillis, int queueDepth,
+      Compression.Estimator compression) {
+    this.transport = transport;
+    this.queue = new ArrayBlockingQueue<PendingMessage>(queueDepth);
+    this.batchSize = batchSize;
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    this.compression = compression;
+    this.sender = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        sendBatches();
+      }
+    }, "kafkameter-batching-producer");
+    this.sender.setDaemon(true);
+    this.sender.start();
+  }
+
+  /**
+   * Enqueue the message, blocking while the queue is full.
+   *
+   * @throws IllegalStateException if the producer has failed
+   */
+  void send(PendingMessage message) throws InterruptedException {
+    if (failure != null) {
+      throw new IllegalStateException("Batching producer has failed", failure);
+    }
+    message.markEnqueued();
+    queue.put(message);
+  }
+
+  /**
+   * Send everything already enqueued and stop the background thread.
+   */
+  void close() {
+    running = false;
+    try {
+      sender.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void sendBatches() {
+    List<PendingMessage> batch = new ArrayList<PendingMessage>(batchSize);
+    try {
+      while (running || !queue.isEmpty()) {
+        PendingMessage first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        fillBatch(batch, first.getEnqueueNanos() + lingerNanos);
+        if (failure != null) {
+          complete(batch, failure);
+        } else {
+          try {
+            flush(batch);
+          } catch (RuntimeException e) {
+            fail(batch, e);
+          } catch (Error e) {
+            fail(batch, e);
+          }
+        }
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void fillBatch(List<PendingMessage> batch, long deadlineNanos) throws InterruptedException {
+    while (batch.size() < batchSize) {
+      queue.drainTo(batch, batchSize - batch.size());
+      long remaining = deadlineNanos - System.nanoTime();
+      if (batch.size() >= batchSize || remaining <= 0 || !running) {
+        return;
+      }
+      PendingMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+      if (next == null) {
+        return;
+      }
+      batch.add(next);
+    }
+  }
+
+  private void flush(List<PendingMessage> batch) {
+    List<KeyedMessage<Long, byte[]>> messages = new ArrayList<KeyedMessage<Long, byte[]>>(batch.size());
+    List<byte[]> payloads = new ArrayList<byte[]>(batch.size());
+    for (PendingMessage message : batch) {
+      messages.add(new KeyedMessage<Long, byte[]>(message.getTopic(), message.getKey(), message.getMessage()));
+      payloads.add(message.getMessage());
+    }
+    Exception exception = null;
+    try {
+      transport.send(messages);
+    } catch (Exception e) {
+      // reported by the samplers, whose stack traces are rate limited
+      exception = e;
+    }
+    long ackNanos = System.nanoTime();
+    double ratio = compression.ratio(payloads);
+    for (PendingMessage message : batch) {
+      message.complete(ackNanos, exception, (int) Math.round(message.getMessage().length * ratio));
+    }
+  }
+
+  private void fail(List<PendingMessage> batch, Throwable cause) {
+    log.error("Batching producer failed; failing every later message", cause);
+    failure = new IllegalStateException("Batching producer has failed", cause);
+    complete(batch, failure);
+  }
+
+  /**
+   * Complete every message in the batch which is not yet completed with the failure.
+   */
+  private void complete(List<PendingMessage> batch, Exception exception) {
+    long ackNanos = System.nanoTime();
+    for (PendingMessage message : batch) {
+      if (!message.isCompleted()) {
+        message.complete(ackNanos, exception, message.getMessage().length);
+      }
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import kafka.javaapi.message.ByteBufferMessageSet;
+import kafka.message.CompressionCodec;
+import kafka.message.CompressionCodec$;
+import kafka.message.Message;
+import kafka.message.NoCompressionCodec$;
+
+/**
+ * Measures the size of messages once compressed by Kafka, for reporting wire bytes alongside
+ * the logical message bytes.
+ *
+ * Measuring a size compresses the messages again, on top of the producer's own compression, so
+ * samplers measure only one in every {@value #DEFAULT_SAMPLE_INTERVAL} message sets by default
+ * through an {@link Estimator}, and scale the rest by the last ratio measured, rather than doubling
+ * the client's compression cost.
+ */
+final class Compression {
+
+  /**
+   * Producer property for how many message sets are sent per compressed size measured; zero never
+   * measures, reporting uncompressed sizes.
+   */
+  static final String SAMPLE_INTERVAL_PROPERTY = "kafkameter.compression.sample.interval";
+
+  static final int DEFAULT_SAMPLE_INTERVAL = 100;
+
+  private Compression() {}
+
+  /**
+   * @param name the codec name, as for the {@code compression.codec} producer property
+   * @return the Kafka compression codec with the given name
+   */
+  static CompressionCodec codec(String name) {
+    return CompressionCodec$.MODULE$.getCompressionCodec(name);
+  }
+
+  /**
+   * @return whether the codec compresses at all
+   */
+  static boolean isCompressed(CompressionCodec codec) {
+    return codec != NoCompressionCodec$.MODULE$;
+  }
+
+  /**
+   * Returns the size of the message set Kafka sends for these messages with the given codec.
+   * Without compression this is simply the total size of the messages.
+   */
+  static int compressedSize(CompressionCodec codec, List<byte[]> messages) {
+    if (!isCompressed(codec)) {
+      return uncompressedSize(messages);
+    }
+    List<Message> kafkaMessages = new ArrayList<Message>(messages.size());
+    for (byte[] message : messages) {
+      kafkaMessages.add(new Message(message));
+    }
+    return new ByteBufferMessageSet(codec, kafkaMessages).sizeInBytes();
+  }
+
+  /**
+   * @param config the producer configuration
+   * @return an estimator for the configuration's codec and {@value #SAMPLE_INTERVAL_PROPERTY}
+   */
+  static Estimator estimator(Properties config) {
+    String interval = config.getProperty(SAMPLE_INTERVAL_PROPERTY);
+    return new Estimator(codec(config.getProperty("compression.codec", "none")),
+        interval == null ? DEFAULT_SAMPLE_INTERVAL : Integer.parseInt(interval.trim()));
+  }
+
+  /**
+   * Estimates the compressed size of message sets by measuring one in every {@code interval} of
+   * them and scaling the others by the compression ratio last measured. Without compression, the
+   * sizes are exact and nothing is measured. Instances are not thread-safe.
+   */
+  static class Estimator {
+    private final CompressionCodec codec;
+    private final int interval;
+    private int count;
+    private double ratio = 1;
+
+    /**
+     * @param codec the producer's compression codec
+     * @param interval how many message sets per measurement, or zero never to measure
+     */
+    Estimator(CompressionCodec codec, int interval) {
+      this.codec = codec;
+      this.interval = interval;
+    }
+
+    /**
+     * @return the estimated size of the message set Kafka sends for these messages
+     */
+    int compressedSize(List<byte[]> messages) {
+      int uncompressedSize = uncompressedSize(messages);
+      if (!isCompressed(codec) || interval <= 0) {
+        return uncompressedSize;
+      }
+      if (count++ % interval != 0) {
+        return (int) Math.round(uncompressedSize * ratio);
+      }
+      int size = Compression.compressedSize(codec, messages);
+      ratio = uncompressedSize == 0 ? 1 : (double) size / uncompressedSize;
+      return size;
+    }
+
+    /**
+     * @return the estimated ratio of these messages' compressed size to their uncompressed size
+     */
+    double ratio(List<byte[]> messages) {
+      int uncompressedSize = uncompressedSize(messages);
+      return uncompressedSize == 0 ? 1 : (double) compressedSize(messages) / uncompressedSize;
+    }
+  }
+
+  /**
+   * @return the total size of the messages
+   */
+  static int uncompressedSize(List<byte[]> messages) {
+    int size = 0;
+    for (byte[] message : messages) {
+      size += message.length;
+    }
+    return size;
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import kafka.consumer.ConsumerIterator;
+import kafka.consumer.ConsumerTimeoutException;
+import kafka.consumer.KafkaStream;
+import kafka.message.MessageAndMetadata;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Consumes one {@link KafkaStream} on a background thread, recording each message's end-to-end
+ * latency from the send time embedded in it to the time it was consumed.
+ *
+ * The latencies are recorded into a {@link LatencyRecorder} which the sampler drains on every
+ * sample, and into the latency log by topic and partition if there is one, while the counts of
+ * messages and bytes consumed only ever grow, so the sampler reports the difference since its
+ * previous sample. Nothing else is shared with the consuming thread but these single-writer fields.
+ */
+class ConsumerFetcher implements Runnable {
+
+  private static final Logger log = LoggingManager.getLoggerForClass();
+
+  private final KafkaStream<byte[], byte[]> stream;
+  private final MessageTimestamps timestamps;
+  private final @Nullable LatencyLog latencyLog;
+  private final LatencyRecorder recorder = new LatencyRecorder();
+  private LatencyRecorder[] partitionRecorders = new LatencyRecorder[0];
+
+  private volatile long messages;
+  private volatile long bytes;
+  private volatile long untimed;
+  private volatile Exception failure;
+  private volatile boolean running = true;
+
+  /**
+   * @param stream the stream to consume, whose consumer times out so that it can be stopped
+   * @param timestamps the reader of each message's send time
+   * @param latencyLog the latency log, or {@code null}
+   */
+  ConsumerFetcher(KafkaStream<byte[], byte[]> stream, MessageTimestamps timestamps, @Nullable LatencyLog latencyLog) {
+    this.stream = stream;
+    this.timestamps = timestamps;
+    this.latencyLog = latencyLog;
+  }
+
+  @Override
+  public void run() {
+    ConsumerIterator<byte[], byte[]> iterator = stream.iterator();
+    while (running) {
+      try {
+        if (!iterator.hasNext()) {
+          return;
+        }
+        consume(iterator.next());
+      } catch (ConsumerTimeoutException e) {
+        // nothing arrived within the consumer timeout, so check whether we've been stopped
+      } catch (Exception e) {
+        if (running) {
+          log.error("Stopped consuming after failure", e);
+          failure = e;
+        }
+        return;
+      }
+    }
+  }
+
+  private void consume(MessageAndMetadata<byte[], byte[]> consumed) {
+    byte[] message = consumed.message();
+    long sentMillis = timestamps.getMillis(message);
+    if (sentMillis == MessageTimestamps.NO_TIMESTAMP) {
+      untimed++;
+    } else {
+      long nanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - sentMillis);
+      recorder.recordNanos(nanos);
+      if (latencyLog != null) {
+        partitionRecorder(consumed.topic(), consumed.partition()).recordNanos(nanos);
+      }
+    }
+    bytes += message.length;
+    messages++;
+  }
+
+  private LatencyRecorder partitionRecorder(String topic, int partition) {
+    if (partition >= partitionRecorders.length) {
+      partitionRecorders = Arrays.copyOf(partitionRecorders, partition + 1);
+    }
+    if (partitionRecorders[partition] == null) {
+      partitionRecorders[partition] = latencyLog.recorder(topic, partition);
+    }
+    return partitionRecorders[partition];
+  }
+
+  /**
+   * Add the latencies recorded since the previous call to the given histogram.
+   */
+  void drainTo(LatencyHistogram interval) {
+    recorder.drainTo(interval);
+  }
+
+  /**
+   * @return the number of messages consumed so far
+   */
+  long getMessages() {
+    return messages;
+  }
+
+  /**
+   * @return the number of bytes consumed so far
+   */
+  long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return the number of messages consumed so far without a readable send time
+   */
+  long getUntimed() {
+    return untimed;
+  }
+
+  /**
+   * @return the failure which stopped this fetcher, or {@code null}
+   */
+  @Nullable Exception getFailure() {
+    return failure;
+  }
+
+  /**
+   * Stop consuming after the current message or consumer timeout.
+   */
+  void stop() {
+    running = false;
+  }
+}
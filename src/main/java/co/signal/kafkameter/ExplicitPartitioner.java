@@ -0,0 +1,38 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import kafka.producer.Partitioner;
+import kafka.utils.VerifiableProperties;
+
+/**
+ * A Kafka {@link Partitioner} for keys which are already partition numbers, chosen by the
+ * {@link KafkaProducerSampler} itself, rather than hashing them.
+ */
+public class ExplicitPartitioner implements Partitioner<Long> {
+
+  /**
+   * Constructed reflectively by the Kafka producer.
+   */
+  public ExplicitPartitioner(VerifiableProperties properties) {
+  }
+
+  @Override
+  public int partition(Long key, int numPartitions) {
+    int partition = (int) (key % numPartitions);
+    return partition < 0 ? partition + numPartitions : partition;
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import kafka.common.BrokerNotAvailableException;
+import kafka.common.FailedToSendMessageException;
+import kafka.common.InvalidMessageSizeException;
+import kafka.common.LeaderNotAvailableException;
+import kafka.common.MessageSizeTooLargeException;
+import kafka.common.NoBrokersForPartitionException;
+import kafka.common.NotLeaderForPartitionException;
+import kafka.common.QueueFullException;
+import kafka.common.RequestTimedOutException;
+import kafka.common.UnknownTopicOrPartitionException;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Cheap, stable reporting of failed sends.
+ *
+ * Each failure is classified into an HTTP-like response code by the innermost of its causes with
+ * a known class, so that failures can be counted by kind in JMeter's listeners. Rendering stack
+ * traces is rate limited across the whole process: only the first failure of each exception
+ * class in each interval has its stack trace captured and logged, along with how many failures
+ * of that class were suppressed since. During a broker outage this keeps every thread from
+ * rendering and retaining the same stack trace on every sample.
+ */
+class Failures {
+
+  private static final Logger log = LoggingManager.getLoggerForClass();
+
+  /**
+   * The response code of failures with no more specific classification.
+   */
+  static final String DEFAULT_RESPONSE_CODE = "500";
+
+  private static final Map<Class<? extends Throwable>, String> responseCodes =
+      new LinkedHashMap<Class<? extends Throwable>, String>();
+  static {
+    responseCodes.put(UnknownTopicOrPartitionException.class, "404");
+    responseCodes.put(MessageSizeTooLargeException.class, "413");
+    responseCodes.put(InvalidMessageSizeException.class, "413");
+    responseCodes.put(QueueFullException.class, "429");
+    responseCodes.put(InterruptedException.class, "499");
+    responseCodes.put(LeaderNotAvailableException.class, "503");
+    responseCodes.put(NotLeaderForPartitionException.class, "503");
+    responseCodes.put(NoBrokersForPartitionException.class, "503");
+    responseCodes.put(BrokerNotAvailableException.class, "503");
+    responseCodes.put(ConnectException.class, "503");
+    responseCodes.put(ClosedChannelException.class, "503");
+    responseCodes.put(RequestTimedOutException.class, "504");
+    responseCodes.put(SocketTimeoutException.class, "504");
+    responseCodes.put(FailedToSendMessageException.class, "502");
+  }
+
+  private static final ConcurrentMap<Class<?>, Occurrences> occurrences =
+      new ConcurrentHashMap<Class<?>, Occurrences>();
+
+  private Failures() {
+  }
+
+  /**
+   * Returns the response code of the innermost of the exception's causes, including the exception
+   * itself, which has a known class, since the outer exceptions are usually generic wrappers.
+   *
+   * @param exception the failure
+   * @return the response code, or {@link #DEFAULT_RESPONSE_CODE} if no cause is known
+   */
+  static String responseCode(Throwable exception) {
+    String responseCode = DEFAULT_RESPONSE_CODE;
+    for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+      for (Map.Entry<Class<? extends Throwable>, String> entry : responseCodes.entrySet()) {
+        if (entry.getKey().isInstance(cause)) {
+          responseCode = entry.getValue();
+          break;
+        }
+      }
+    }
+    return responseCode;
+  }
+
+  /**
+   * Returns the exception's stack trace unless another of its class was captured within the
+   * interval. Rate-limited stack traces are also logged, with the number suppressed since the last.
+   *
+   * @param exception the failure
+   * @param intervalMillis the minimum time between stack traces of the same exception class,
+   *                       or zero to capture every stack trace
+   * @return the stack trace, or {@code null} if it was suppressed
+   */
+  static @Nullable String captureStackTrace(Throwable exception, long intervalMillis) {
+    if (intervalMillis > 0) {
+      Occurrences seen = occurrences.get(exception.getClass());
+      if (seen == null) {
+        Occurrences created = new Occurrences();
+        seen = occurrences.putIfAbsent(exception.getClass(), created);
+        if (seen == null) {
+          seen = created;
+        }
+      }
+      long now = System.currentTimeMillis();
+      long next = seen.nextMillis.get();
+      if (now < next || !seen.nextMillis.compareAndSet(next, now + intervalMillis)) {
+        seen.suppressed.incrementAndGet();
+        return null;
+      }
+      log.warn("Kafka request failed; suppressed " + seen.suppressed.getAndSet(0)
+          + " similar stack traces in the last " + intervalMillis + " ms", exception);
+    }
+    StringWriter stringWriter = new StringWriter();
+    exception.printStackTrace(new PrintWriter(stringWriter));
+    return stringWriter.toString();
+  }
+
+  private static class Occurrences {
+    private final AtomicLong nextMillis = new AtomicLong();
+    private final AtomicInteger suppressed = new AtomicInteger();
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import kafka.consumer.Consumer;
+import kafka.consumer.ConsumerConfig;
+import kafka.consumer.KafkaStream;
+import kafka.javaapi.consumer.ConsumerConnector;
+
+import org.apache.jmeter.config.Arguments;
+import org.apache.jmeter.protocol.java.sampler.AbstractJavaSamplerClient;
+import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterVariables;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * A {@link org.apache.jmeter.samplers.Sampler Sampler} which consumes Kafka messages and measures
+ * their end-to-end latency, from the send time embedded in each message to when it is consumed.
+ *
+ * Each sampler consumes its topic on {@link ConsumerFetcher} background threads, one per stream.
+ * Every sample waits for the sample interval and then reports the messages consumed since the
+ * previous sample as one aggregated result, whose sample count is the number of messages, so that
+ * JMeter's listeners show the consumer throughput, and whose response message gives their
+ * end-to-end latency. The latencies depend on the producing and consuming hosts' clocks agreeing.
+ *
+ * A JSON send time is stamped when the message is generated, so the latencies of messages which
+ * were pre-generated or replayed from a corpus include the time they waited before being sent.
+ * The header is stamped by the producer as it sends, and measures from the send itself.
+ */
+public class KafkaConsumerSampler extends AbstractJavaSamplerClient {
+
+  private static final Logger log = LoggingManager.getLoggerForClass();
+
+  /**
+   * Parameter for setting the ZooKeeper connection string; for example, "zk01:2181,zk02:2181".
+   */
+  private static final String PARAMETER_KAFKA_ZOOKEEPER = "kafka_zookeeper";
+
+  /**
+   * Parameter for setting the Kafka topic name.
+   */
+  private static final String PARAMETER_KAFKA_TOPIC = "kafka_topic";
+
+  /**
+   * Parameter for setting Kafka's {@code group.id} property. Samplers in the same group divide
+   * the topic's partitions between them.
+   */
+  private static final String PARAMETER_KAFKA_GROUP_ID = "kafka_group_id";
+
+  /**
+   * Parameter for setting the number of streams, each consumed on its own fetcher thread.
+   */
+  private static final String PARAMETER_KAFKA_CONSUMER_THREADS = "kafka_consumer_threads";
+
+  /**
+   * Parameter for setting Kafka's {@code auto.offset.reset} property: "largest" (the default)
+   * consumes only messages sent after the group first connects, "smallest" the whole topic.
+   */
+  private static final String PARAMETER_KAFKA_AUTO_OFFSET_RESET = "kafka_auto_offset_reset";
+
+  /**
+   * Parameter for choosing how each message's send time is read: "json" or "header"; see
+   * {@link MessageTimestamps}.
+   */
+  private static final String PARAMETER_KAFKA_TIMESTAMP_FORMAT = "kafka_timestamp_format";
+
+  /**
+   * Parameter for setting the JSON field holding each message's send time in epoch milliseconds.
+   */
+  private static final String PARAMETER_KAFKA_TIMESTAMP_FIELD = "kafka_timestamp_field";
+
+  /**
+   * Parameter for setting how long in milliseconds each sample waits while messages are consumed.
+   */
+  private static final String PARAMETER_KAFKA_SAMPLE_INTERVAL_MS = "kafka_sample_interval_ms";
+
+  /**
+   * Parameter for naming a file to which every message's end-to-end latency is written as interval
+   * histograms by topic and partition, independently of JMeter's listeners. Empty (the default)
+   * disables it.
+   */
+  private static final String PARAMETER_KAFKA_LATENCY_LOG = "kafka_latency_log";
+
+  /**
+   * Parameter for setting how often in milliseconds the latency log is written.
+   */
+  private static final String PARAMETER_KAFKA_LATENCY_LOG_INTERVAL_MS = "kafka_latency_log_interval_ms";
+
+  /**
+   * Parameter for setting the minimum time in milliseconds between captured stack traces of the
+   * same exception class across all samplers. Zero captures the stack trace of every failure.
+   */
+  private static final String PARAMETER_KAFKA_STACK_TRACE_INTERVAL_MS = "kafka_stack_trace_interval_ms";
+
+  /**
+   * Variables exporting the minimum, mean, 99th percentile and maximum end-to-end latency in
+   * microseconds of the messages reported by each sample.
+   */
+  private static final String VARIABLE_MIN_LATENCY = "kafka_e2e_min_latency_us";
+  private static final String VARIABLE_MEAN_LATENCY = "kafka_e2e_mean_latency_us";
+  private static final String VARIABLE_P99_LATENCY = "kafka_e2e_p99_latency_us";
+  private static final String VARIABLE_MAX_LATENCY = "kafka_e2e_max_latency_us";
+
+  /**
+   * Variable exporting the number of messages reported by each sample.
+   */
+  private static final String VARIABLE_CONSUMED_MESSAGES = "kafka_consumed_messages";
+
+  /**
+   * How long in milliseconds a fetcher waits for a message before checking whether it has been stopped.
+   */
+  private static final long CONSUMER_TIMEOUT_MILLIS = 100;
+
+  private ConsumerConnector connector;
+  private final List<ConsumerFetcher> fetchers = new ArrayList<ConsumerFetcher>();
+  private final List<Thread> fetcherThreads = new ArrayList<Thread>();
+  private final LatencyHistogram interval = new LatencyHistogram();
+  private LatencyLog latencyLog;
+  private String topic;
+  private long sampleIntervalMillis;
+  private long stackTraceIntervalMillis;
+  private long reportedMessages;
+  private long reportedBytes;
+  private long reportedUntimed;
+
+  @Override
+  public void setupTest(JavaSamplerContext context) {
+    Properties props = new Properties();
+    props.put("zookeeper.connect", context.getParameter(PARAMETER_KAFKA_ZOOKEEPER));
+    props.put("group.id", context.getParameter(PARAMETER_KAFKA_GROUP_ID, "kafkameter"));
+    props.put("auto.offset.reset", context.getParameter(PARAMETER_KAFKA_AUTO_OFFSET_RESET, "largest"));
+    props.put("consumer.timeout.ms", String.valueOf(CONSUMER_TIMEOUT_MILLIS));
+
+    topic = context.getParameter(PARAMETER_KAFKA_TOPIC);
+    sampleIntervalMillis = context.getLongParameter(PARAMETER_KAFKA_SAMPLE_INTERVAL_MS, 1000);
+    stackTraceIntervalMillis = context.getLongParameter(PARAMETER_KAFKA_STACK_TRACE_INTERVAL_MS, 60000);
+    MessageTimestamps timestamps = MessageTimestamps.create(
+        context.getParameter(PARAMETER_KAFKA_TIMESTAMP_FORMAT, MessageTimestamps.JSON),
+        context.getParameter(PARAMETER_KAFKA_TIMESTAMP_FIELD, "timestamp"));
+
+    String latencyLogFile = context.getParameter(PARAMETER_KAFKA_LATENCY_LOG, "");
+    if (!latencyLogFile.isEmpty()) {
+      latencyLog = LatencyLog.open(latencyLogFile,
+          context.getLongParameter(PARAMETER_KAFKA_LATENCY_LOG_INTERVAL_MS, 10000));
+    }
+
+    int threads = Math.max(1, context.getIntParameter(PARAMETER_KAFKA_CONSUMER_THREADS, 1));
+    connector = Consumer.createJavaConsumerConnector(new ConsumerConfig(props));
+    List<KafkaStream<byte[], byte[]>> streams =
+        connector.createMessageStreams(Collections.singletonMap(topic, threads)).get(topic);
+    for (KafkaStream<byte[], byte[]> stream : streams) {
+      ConsumerFetcher fetcher = new ConsumerFetcher(stream, timestamps, latencyLog);
+      Thread thread = new Thread(fetcher, "kafkameter-consumer-" + topic + "-" + fetchers.size());
+      thread.setDaemon(true);
+      thread.start();
+      fetchers.add(fetcher);
+      fetcherThreads.add(thread);
+    }
+    log.info("Consuming " + topic + " on " + streams.size() + " fetcher threads");
+  }
+
+  @Override
+  public void teardownTest(JavaSamplerContext context) {
+    for (ConsumerFetcher fetcher : fetchers) {
+      fetcher.stop();
+    }
+    connector.shutdown();
+    connector = null;
+    for (Thread thread : fetcherThreads) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    fetchers.clear();
+    fetcherThreads.clear();
+    if (latencyLog != null) {
+      latencyLog.release();
+      latencyLog = null;
+    }
+  }
+
+  @Override
+  public Arguments getDefaultParameters() {
+    Arguments defaultParameters = new Arguments();
+    defaultParameters.addArgument(PARAMETER_KAFKA_ZOOKEEPER, "${PARAMETER_KAFKA_ZOOKEEPER}");
+    defaultParameters.addArgument(PARAMETER_KAFKA_TOPIC, "${PARAMETER_KAFKA_TOPIC}");
+    defaultParameters.addArgument(PARAMETER_KAFKA_GROUP_ID, "kafkameter");
+    defaultParameters.addArgument(PARAMETER_KAFKA_CONSUMER_THREADS, "1");
+    defaultParameters.addArgument(PARAMETER_KAFKA_AUTO_OFFSET_RESET, "largest");
+    defaultParameters.addArgument(PARAMETER_KAFKA_TIMESTAMP_FORMAT, MessageTimestamps.JSON);
+    defaultParameters.addArgument(PARAMETER_KAFKA_TIMESTAMP_FIELD, "timestamp");
+    defaultParameters.addArgument(PARAMETER_KAFKA_SAMPLE_INTERVAL_MS, "1000");
+    defaultParameters.addArgument(PARAMETER_KAFKA_LATENCY_LOG, "");
+    defaultParameters.addArgument(PARAMETER_KAFKA_LATENCY_LOG_INTERVAL_MS, "10000");
+    defaultParameters.addArgument(PARAMETER_KAFKA_STACK_TRACE_INTERVAL_MS, "60000");
+    return defaultParameters;
+  }
+
+  /**
+   * Wait for the sample interval, then report every message consumed since the previous sample.
+   * The sample counts the messages, its bytes are theirs, and its response message and variables
+   * give their minimum, mean, 99th percentile and maximum end-to-end latency. A sample in which
+   * nothing was consumed still counts as one. If a fetcher has failed, the sample fails with the
+   * failure's response code.
+   */
+  @Override
+  public SampleResult runTest(JavaSamplerContext context) {
+    SampleResult result = new SampleResult();
+    result.setDataEncoding(ENCODING);
+    result.setDataType(SampleResult.TEXT);
+    result.setSamplerData("Consume " + topic);
+    result.sampleStart();
+    try {
+      Thread.sleep(sampleIntervalMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    interval.reset();
+    long messages = 0;
+    long bytes = 0;
+    long untimed = 0;
+    Exception failure = null;
+    for (ConsumerFetcher fetcher : fetchers) {
+      fetcher.drainTo(interval);
+      messages += fetcher.getMessages();
+      bytes += fetcher.getBytes();
+      untimed += fetcher.getUntimed();
+      failure = failure != null ? failure : fetcher.getFailure();
+    }
+    result.sampleEnd();
+
+    long sampled = messages - reportedMessages;
+    int sampledBytes = (int) Math.min(Integer.MAX_VALUE, bytes - reportedBytes);
+    result.setSampleCount((int) Math.max(1, Math.min(Integer.MAX_VALUE, sampled)));
+    result.setBytes(sampledBytes);
+    // JMeter reports the body size as the bytes by default, rather than the bytes set above
+    result.setBodySize(sampledBytes);
+    setLatencySummary(result, sampled, untimed - reportedUntimed);
+    reportedMessages = messages;
+    reportedBytes = bytes;
+    reportedUntimed = untimed;
+
+    if (failure == null) {
+      result.setSuccessful(true);
+      result.setResponseCodeOK();
+    } else {
+      result.setSuccessful(false);
+      result.setResponseCode(Failures.responseCode(failure));
+      String stackTrace = Failures.captureStackTrace(failure, stackTraceIntervalMillis);
+      if (stackTrace != null) {
+        result.setResponseData(stackTrace, ENCODING);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Set the sample's response message to the interval's end-to-end latencies, and export them as variables.
+   *
+   * @param result the sample result to update
+   * @param messages the number of messages consumed during the sample
+   * @param untimed the number of those messages without a readable send time
+   */
+  private void setLatencySummary(SampleResult result, long messages, long untimed) {
+    long min = interval.getMinValue();
+    long mean = Math.round(interval.getMean());
+    long p99 = interval.getValueAtPercentile(99);
+    long max = interval.getMaxValue();
+    double rate = messages * 1000.0 / Math.max(1, result.getTime());
+    result.setResponseMessage(messages + " messages consumed (" + Math.round(rate) + "/s), " + untimed
+        + " without timestamps; end-to-end latency min/mean/99%/max " + min + "/" + mean + "/" + p99 + "/" + max + " us");
+    JMeterVariables variables = JMeterContextService.getContext().getVariables();
+    variables.put(VARIABLE_CONSUMED_MESSAGES, String.valueOf(messages));
+    variables.put(VARIABLE_MIN_LATENCY, String.valueOf(min));
+    variables.put(VARIABLE_MEAN_LATENCY, String.valueOf(mean));
+    variables.put(VARIABLE_P99_LATENCY, String.valueOf(p99));
+    variables.put(VARIABLE_MAX_LATENCY, String.valueOf(max));
+  }
+
+  /**
+   * Use UTF-8 for encoding of strings
+   */
+  private static final String ENCODING = "UTF-8";
+}
@@ -15,13 +15,21 @@
  */
 package co.signal.kafkameter;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
 
-import kafka.javaapi.producer.Producer;
 import kafka.producer.KeyedMessage;
-import kafka.producer.ProducerConfig;
 import kafka.serializer.DefaultEncoder;
 import kafka.serializer.NullEncoder;
 
@@ -29,9 +37,16 @@ import org.apache.jmeter.config.Arguments;
 import org.apache.jmeter.protocol.java.sampler.AbstractJavaSamplerClient;
 import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
 import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterVariables;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
 
+import co.signal.loadgen.LoadGenerator;
+import co.signal.loadgen.MessageSource;
+import co.signal.loadgen.NodeShard;
+import co.signal.loadgen.RandomStreams;
+
 /**
  * A {@link org.apache.jmeter.samplers.Sampler Sampler} which produces Kafka messages.
  *
@@ -66,6 +81,13 @@ public class KafkaProducerSampler extends AbstractJavaSamplerClient {
    */
   private static final String PARAMETER_KAFKA_MESSAGE = "kafka_message";
 
+  /**
+   * Parameter for naming a variable which holds the Kafka message as a {@code byte[]} object,
+   * such as one exported by the {@link co.signal.loadgen.LoadGenerator LoadGenerator}. When set,
+   * this takes precedence over {@link #PARAMETER_KAFKA_MESSAGE}.
+   */
+  private static final String PARAMETER_KAFKA_MESSAGE_VARIABLE = "kafka_message_variable";
+
   /**
    * Parameter for setting Kafka's {@code serializer.class} property.
    */
@@ -76,7 +98,202 @@ public class KafkaProducerSampler extends AbstractJavaSamplerClient {
    */
   private static final String PARAMETER_KAFKA_KEY_SERIALIZER = "kafka_key_serializer";
 
-  private Producer<Long, byte[]> producer;
+  /**
+   * Parameter for choosing between "sync" sends, which block on the broker ack, and "async"
+   * sends, which are batched on a background thread.
+   */
+  private static final String PARAMETER_KAFKA_PRODUCER_TYPE = "kafka_producer_type";
+
+  /**
+   * Parameter for setting the maximum number of messages per batch in async mode.
+   */
+  private static final String PARAMETER_KAFKA_BATCH_SIZE = "kafka_batch_num_messages";
+
+  /**
+   * Parameter for setting the maximum time in milliseconds a message waits for its batch in async mode.
+   */
+  private static final String PARAMETER_KAFKA_LINGER_MS = "kafka_queue_buffering_max_ms";
+
+  /**
+   * Parameter for setting the maximum number of unsent messages in async mode before sends block.
+   */
+  private static final String PARAMETER_KAFKA_QUEUE_DEPTH = "kafka_queue_buffering_max_messages";
+
+  /**
+   * Parameter for setting the number of producers shared by all samplers with the same settings,
+   * or zero (the default) for each sampler thread to have its own producer.
+   */
+  private static final String PARAMETER_KAFKA_PRODUCER_POOL_SIZE = "kafka_producer_pool_size";
+
+  /**
+   * Parameter for setting Kafka's {@code compression.codec} property: "none", "gzip" or "snappy".
+   */
+  private static final String PARAMETER_KAFKA_COMPRESSION_CODEC = "kafka_compression_codec";
+
+  /**
+   * Parameter for setting how many samples or batches are sent per compressed size measured, since
+   * each measurement compresses the messages a second time. Zero never measures.
+   */
+  private static final String PARAMETER_KAFKA_COMPRESSION_SAMPLE_INTERVAL = "kafka_compression_sample_interval";
+
+  /**
+   * Variable exporting the uncompressed bytes of the messages reported by each sample.
+   * Add it to the {@code sample_variables} JMeter property to save it with the results.
+   */
+  private static final String VARIABLE_UNCOMPRESSED_BYTES = "kafka_uncompressed_bytes";
+
+  /**
+   * Variable exporting the compressed bytes of the messages reported by each sample.
+   * Add it to the {@code sample_variables} JMeter property to save it with the results.
+   */
+  private static final String VARIABLE_COMPRESSED_BYTES = "kafka_compressed_bytes";
+
+  /**
+   * Parameter for setting the open-loop target rate in messages per second for each thread.
+   * Zero (the default) sends each message as soon as the previous sample finishes.
+   */
+  private static final String PARAMETER_KAFKA_TARGET_RATE = "kafka_target_rate";
+
+  /**
+   * Parameter for choosing between "constant" and "poisson" intervals between open-loop sends.
+   */
+  private static final String PARAMETER_KAFKA_ARRIVAL_PROCESS = "kafka_arrival_process";
+
+  /**
+   * Parameter for naming a file to which every send's latency is written as interval histograms
+   * by topic and partition, independently of JMeter's listeners. Empty (the default) disables it.
+   */
+  private static final String PARAMETER_KAFKA_LATENCY_LOG = "kafka_latency_log";
+
+  /**
+   * Parameter for setting how often in milliseconds the latency log is written.
+   */
+  private static final String PARAMETER_KAFKA_LATENCY_LOG_INTERVAL_MS = "kafka_latency_log_interval_ms";
+
+  /**
+   * Parameter for setting the number of messages sent by each sample. Above one, the messages
+   * after the first are taken from the Load Generator's {@link MessageSource} for
+   * {@link #PARAMETER_KAFKA_MESSAGE_VARIABLE}, or repeat the first if there is none, and the
+   * sample reports them all as one aggregated result.
+   */
+  private static final String PARAMETER_KAFKA_SAMPLE_MESSAGES = "kafka_sample_messages";
+
+  /**
+   * Variables exporting the minimum, mean and maximum latency in microseconds of the messages
+   * reported by each sample that sends more than one message.
+   */
+  private static final String VARIABLE_MIN_LATENCY = "kafka_min_latency_us";
+  private static final String VARIABLE_MEAN_LATENCY = "kafka_mean_latency_us";
+  private static final String VARIABLE_MAX_LATENCY = "kafka_max_latency_us";
+
+  /**
+   * Parameter for choosing how much of each message is kept as the sample's sampler data:
+   * "failures" (the default) keeps failed messages truncated to
+   * {@link #PARAMETER_KAFKA_SAMPLER_DATA_MAX_BYTES}, "full" and "truncated" keep every message,
+   * and "none" keeps nothing. Keeping successful messages decodes each of them as a String.
+   */
+  private static final String PARAMETER_KAFKA_SAMPLER_DATA = "kafka_sampler_data";
+
+  /**
+   * Parameter for setting the number of bytes of each message kept as "truncated" or "failures"
+   * sampler data.
+   */
+  private static final String PARAMETER_KAFKA_SAMPLER_DATA_MAX_BYTES = "kafka_sampler_data_max_bytes";
+
+  /**
+   * Parameter for setting the minimum time in milliseconds between captured stack traces of the
+   * same exception class across all samplers. Zero captures the stack trace of every failure.
+   */
+  private static final String PARAMETER_KAFKA_STACK_TRACE_INTERVAL_MS = "kafka_stack_trace_interval_ms";
+
+  /**
+   * Parameter for choosing how each message's key is chosen: "parameter" (the default) sends
+   * {@link #PARAMETER_KAFKA_KEY}, while "sequential", "uniform", "zipfian" and "hotspot" generate
+   * keys in {@code [0, kafka_key_space)} on the sampler's own thread; see {@link KeyDistribution}.
+   */
+  private static final String PARAMETER_KAFKA_KEY_STRATEGY = "kafka_key_strategy";
+
+  /**
+   * Parameter for setting the number of distinct generated keys.
+   */
+  private static final String PARAMETER_KAFKA_KEY_SPACE = "kafka_key_space";
+
+  /**
+   * Parameter for setting the exponent of "zipfian" keys; larger exponents are more skewed.
+   */
+  private static final String PARAMETER_KAFKA_KEY_ZIPF_EXPONENT = "kafka_key_zipf_exponent";
+
+  /**
+   * Parameter for setting the fraction of "hotspot" keys which are hot.
+   */
+  private static final String PARAMETER_KAFKA_KEY_HOT_FRACTION = "kafka_key_hot_fraction";
+
+  /**
+   * Parameter for setting the fraction of "hotspot" messages sent to the hot keys.
+   */
+  private static final String PARAMETER_KAFKA_KEY_HOT_PROBABILITY = "kafka_key_hot_probability";
+
+  /**
+   * Parameter for sending each message to the partition numbered by its key modulo this many
+   * partitions, through the {@link ExplicitPartitioner} rather than Kafka's hashing partitioner.
+   * Set it to the topic's partition count. Zero (the default) leaves partitioning to Kafka.
+   */
+  private static final String PARAMETER_KAFKA_PARTITIONS = "kafka_partitions";
+
+  /**
+   * Parameter for prefixing each message with its send time (its intended send time with a target
+   * rate) as 8 big-endian bytes of epoch milliseconds, from which the {@link KafkaConsumerSampler}
+   * measures end-to-end latency; see {@link MessageTimestamps}.
+   */
+  private static final String PARAMETER_KAFKA_TIMESTAMP_HEADER = "kafka_timestamp_header";
+
+  /**
+   * Parameter for choosing where messages are sent: "kafka" (the default), or one of the "null",
+   * "file" and "queue" sinks for measuring the load generation stack without a broker, or the
+   * class name of a custom {@link Transport}; see {@link Transports}.
+   */
+  private static final String PARAMETER_KAFKA_TRANSPORT = "kafka_transport";
+
+  /**
+   * Parameter for naming the file written by the "file" transport.
+   */
+  private static final String PARAMETER_KAFKA_TRANSPORT_FILE = "kafka_transport_file";
+
+  /**
+   * Parameter for setting the capacity of the "queue" transport.
+   */
+  private static final String PARAMETER_KAFKA_TRANSPORT_QUEUE_CAPACITY = "kafka_transport_queue_capacity";
+
+  private static final String KEY_STRATEGY_PARAMETER = "parameter";
+
+  private static final String PRODUCER_TYPE_ASYNC = "async";
+
+  private static final String SAMPLER_DATA_FULL = "full";
+  private static final String SAMPLER_DATA_TRUNCATED = "truncated";
+  private static final String SAMPLER_DATA_NONE = "none";
+  private static final String SAMPLER_DATA_FAILURES = "failures";
+
+  /**
+   * The longest teardown waits in async mode for the acknowledgements of a thread's last messages.
+   */
+  private static final long TEARDOWN_TIMEOUT_MILLIS = 10000;
+
+  private ProducerPool.Lease lease;
+  private Transport transport;
+  private BatchingProducer batchingProducer;
+  private Compression.Estimator compression;
+  private ArrivalSchedule schedule;
+  private int sampleMessages;
+  private String samplerDataRetention;
+  private int samplerDataMaxBytes;
+  private long stackTraceIntervalMillis;
+  private final Queue<PendingMessage> acknowledged = new ConcurrentLinkedQueue<PendingMessage>();
+  private int outstanding;
+  private LatencyLog latencyLog;
+  private final Map<String, LatencyRecorder[]> recorders = new HashMap<String, LatencyRecorder[]>();
+  private KeyDistribution keys;
+  private Long[] partitionKeys;
+  private boolean timestampHeader;
 
   @Override
   public void setupTest(JavaSamplerContext context) {
@@ -86,9 +303,92 @@ public class KafkaProducerSampler extends AbstractJavaSamplerClient {
     props.put("serializer.class", DefaultEncoder.class.getName());
     props.put("key.serializer.class", NullEncoder.class.getName());
     props.put("request.required.acks", "1");
+    props.put("compression.codec", context.getParameter(PARAMETER_KAFKA_COMPRESSION_CODEC, "none"));
+    props.put(Compression.SAMPLE_INTERVAL_PROPERTY, context.getParameter(PARAMETER_KAFKA_COMPRESSION_SAMPLE_INTERVAL,
+        String.valueOf(Compression.DEFAULT_SAMPLE_INTERVAL)));
+    compression = Compression.estimator(props);
+
+    int partitions = context.getIntParameter(PARAMETER_KAFKA_PARTITIONS, 0);
+    if (partitions > 0) {
+      props.put("partitioner.class", ExplicitPartitioner.class.getName());
+      partitionKeys = new Long[partitions];
+      for (int i = 0; i < partitions; i++) {
+        partitionKeys[i] = Long.valueOf(i);
+      }
+    }
+
+    ProducerPool.BatchSettings batch = null;
+    if (PRODUCER_TYPE_ASYNC.equals(context.getParameter(PARAMETER_KAFKA_PRODUCER_TYPE, "sync"))) {
+      batch = new ProducerPool.BatchSettings(
+          context.getIntParameter(PARAMETER_KAFKA_BATCH_SIZE, 200),
+          context.getLongParameter(PARAMETER_KAFKA_LINGER_MS, 100),
+          context.getIntParameter(PARAMETER_KAFKA_QUEUE_DEPTH, 10000));
+    }
+
+    String transportType = context.getParameter(PARAMETER_KAFKA_TRANSPORT, Transports.KAFKA);
+    if (Transports.FILE.equals(transportType)) {
+      props.put(Transports.FILE_PROPERTY, context.getParameter(PARAMETER_KAFKA_TRANSPORT_FILE, "kafkameter.corpus"));
+    } else if (Transports.QUEUE.equals(transportType)) {
+      props.put(Transports.QUEUE_CAPACITY_PROPERTY, context.getParameter(PARAMETER_KAFKA_TRANSPORT_QUEUE_CAPACITY, "10000"));
+    }
+
+    lease = ProducerPool.lease(props, transportType,
+        context.getIntParameter(PARAMETER_KAFKA_PRODUCER_POOL_SIZE, 0), batch);
+    transport = lease.getTransport();
+    batchingProducer = lease.getBatchingProducer();
+
+    double targetRate = Double.parseDouble(context.getParameter(PARAMETER_KAFKA_TARGET_RATE, "0"));
+    if (targetRate > 0) {
+      boolean poisson = ArrivalSchedule.POISSON.equals(
+          context.getParameter(PARAMETER_KAFKA_ARRIVAL_PROCESS, ArrivalSchedule.CONSTANT));
+      schedule = new ArrivalSchedule(targetRate, poisson ? RandomStreams.newThreadStream() : null);
+    }
 
-    ProducerConfig config = new ProducerConfig(props);
-    producer = new Producer<Long, byte[]>(config);
+    String keyStrategy = context.getParameter(PARAMETER_KAFKA_KEY_STRATEGY, KEY_STRATEGY_PARAMETER);
+    if (!KEY_STRATEGY_PARAMETER.equals(keyStrategy)) {
+      keys = KeyDistribution.create(keyStrategy,
+          context.getLongParameter(PARAMETER_KAFKA_KEY_SPACE, 1000000),
+          JMeterContextService.getContext().getThreadNum(),
+          KeyDistribution.isRandom(keyStrategy) ? RandomStreams.newThreadStream() : null,
+          Double.parseDouble(context.getParameter(PARAMETER_KAFKA_KEY_ZIPF_EXPONENT, "0.99")),
+          Double.parseDouble(context.getParameter(PARAMETER_KAFKA_KEY_HOT_FRACTION, "0.2")),
+          Double.parseDouble(context.getParameter(PARAMETER_KAFKA_KEY_HOT_PROBABILITY, "0.8")),
+          NodeShard.current());
+    }
+
+    timestampHeader = Boolean.parseBoolean(context.getParameter(PARAMETER_KAFKA_TIMESTAMP_HEADER, "false"));
+    sampleMessages = Math.max(1, context.getIntParameter(PARAMETER_KAFKA_SAMPLE_MESSAGES, 1));
+
+    samplerDataRetention = context.getParameter(PARAMETER_KAFKA_SAMPLER_DATA, SAMPLER_DATA_FAILURES);
+    samplerDataMaxBytes = Math.max(0, context.getIntParameter(PARAMETER_KAFKA_SAMPLER_DATA_MAX_BYTES, 1024));
+    stackTraceIntervalMillis = context.getLongParameter(PARAMETER_KAFKA_STACK_TRACE_INTERVAL_MS, 60000);
+
+    String latencyLogFile = context.getParameter(PARAMETER_KAFKA_LATENCY_LOG, "");
+    if (!latencyLogFile.isEmpty()) {
+      latencyLog = LatencyLog.open(latencyLogFile,
+          context.getLongParameter(PARAMETER_KAFKA_LATENCY_LOG_INTERVAL_MS, 10000));
+    }
+  }
+
+  @Override
+  public void teardownTest(JavaSamplerContext context) {
+    if (batchingProducer != null) {
+      awaitAcknowledgements();
+    }
+    if (lease != null) {
+      lease.release();
+    }
+    lease = null;
+    transport = null;
+    batchingProducer = null;
+    schedule = null;
+    keys = null;
+    partitionKeys = null;
+    if (latencyLog != null) {
+      latencyLog.release();
+      latencyLog = null;
+      recorders.clear();
+    }
   }
 
   @Override
@@ -98,27 +398,474 @@ public class KafkaProducerSampler extends AbstractJavaSamplerClient {
     defaultParameters.addArgument(PARAMETER_KAFKA_TOPIC, "${PARAMETER_KAFKA_TOPIC}");
     defaultParameters.addArgument(PARAMETER_KAFKA_KEY, "${PARAMETER_KAFKA_KEY}");
     defaultParameters.addArgument(PARAMETER_KAFKA_MESSAGE, "${PARAMETER_KAFKA_MESSAGE}");
+    defaultParameters.addArgument(PARAMETER_KAFKA_MESSAGE_VARIABLE, "");
     defaultParameters.addArgument(PARAMETER_KAFKA_MESSAGE_SERIALIZER, "kafka.serializer.DefaultEncoder");
     defaultParameters.addArgument(PARAMETER_KAFKA_KEY_SERIALIZER, "kafka.serializer.NullEncoder");
+    defaultParameters.addArgument(PARAMETER_KAFKA_COMPRESSION_CODEC, "none");
+    defaultParameters.addArgument(PARAMETER_KAFKA_COMPRESSION_SAMPLE_INTERVAL, String.valueOf(Compression.DEFAULT_SAMPLE_INTERVAL));
+    defaultParameters.addArgument(PARAMETER_KAFKA_PRODUCER_POOL_SIZE, "0");
+    defaultParameters.addArgument(PARAMETER_KAFKA_PRODUCER_TYPE, "sync");
+    defaultParameters.addArgument(PARAMETER_KAFKA_BATCH_SIZE, "200");
+    defaultParameters.addArgument(PARAMETER_KAFKA_LINGER_MS, "100");
+    defaultParameters.addArgument(PARAMETER_KAFKA_QUEUE_DEPTH, "10000");
+    defaultParameters.addArgument(PARAMETER_KAFKA_TARGET_RATE, "0");
+    defaultParameters.addArgument(PARAMETER_KAFKA_ARRIVAL_PROCESS, ArrivalSchedule.CONSTANT);
+    defaultParameters.addArgument(PARAMETER_KAFKA_LATENCY_LOG, "");
+    defaultParameters.addArgument(PARAMETER_KAFKA_LATENCY_LOG_INTERVAL_MS, "10000");
+    defaultParameters.addArgument(PARAMETER_KAFKA_SAMPLE_MESSAGES, "1");
+    defaultParameters.addArgument(PARAMETER_KAFKA_SAMPLER_DATA, SAMPLER_DATA_FAILURES);
+    defaultParameters.addArgument(PARAMETER_KAFKA_SAMPLER_DATA_MAX_BYTES, "1024");
+    defaultParameters.addArgument(PARAMETER_KAFKA_STACK_TRACE_INTERVAL_MS, "60000");
+    defaultParameters.addArgument(PARAMETER_KAFKA_KEY_STRATEGY, KEY_STRATEGY_PARAMETER);
+    defaultParameters.addArgument(PARAMETER_KAFKA_KEY_SPACE, "1000000");
+    defaultParameters.addArgument(PARAMETER_KAFKA_KEY_ZIPF_EXPONENT, "0.99");
+    defaultParameters.addArgument(PARAMETER_KAFKA_KEY_HOT_FRACTION, "0.2");
+    defaultParameters.addArgument(PARAMETER_KAFKA_KEY_HOT_PROBABILITY, "0.8");
+    defaultParameters.addArgument(PARAMETER_KAFKA_PARTITIONS, "0");
+    defaultParameters.addArgument(PARAMETER_KAFKA_TIMESTAMP_HEADER, "false");
+    defaultParameters.addArgument(PARAMETER_KAFKA_TRANSPORT, Transports.KAFKA);
+    defaultParameters.addArgument(PARAMETER_KAFKA_TRANSPORT_FILE, "kafkameter.corpus");
+    defaultParameters.addArgument(PARAMETER_KAFKA_TRANSPORT_QUEUE_CAPACITY, "10000");
     return defaultParameters;
   }
 
   @Override
   public SampleResult runTest(JavaSamplerContext context) {
-    SampleResult result = newSampleResult();
+    if (sampleMessages > 1) {
+      return runBatch(context);
+    }
+    SampleResult result = schedule != null ? new ScheduledSampleResult() : newSampleResult();
     String topic = context.getParameter(PARAMETER_KAFKA_TOPIC);
-    Long key = context.getLongParameter(PARAMETER_KAFKA_KEY);
-    String message = context.getParameter(PARAMETER_KAFKA_MESSAGE);
-    sampleResultStart(result, message);
+    Long key = nextKey(context);
+    byte[] message = getMessage(context);
+    long intendedNanos = 0;
+    if (schedule != null) {
+      intendedNanos = schedule.next();
+      schedule.awaitNanos(intendedNanos);
+    }
+    message = stampMessage(message, intendedNanos);
+    long startNanos = System.nanoTime();
+    sampleResultStart(result, getSamplerData(message, false));
     try {
-      producer.send(new KeyedMessage<Long, byte[]>(topic, key, message.getBytes()));
+      if (batchingProducer != null) {
+        PendingMessage pending = new PendingMessage(topic, key, message, acknowledged);
+        if (schedule != null) {
+          pending.setIntended(schedule.toMillis(intendedNanos), intendedNanos);
+        }
+        batchingProducer.send(pending);
+        outstanding++;
+      } else {
+        transport.send(new KeyedMessage<Long, byte[]>(topic, key, message));
+        recordLatency(topic, key, System.nanoTime() - (schedule != null ? intendedNanos : startNanos));
+      }
       sampleResultSuccess(result, null);
     } catch (Exception e) {
-      sampleResultFailed(result, "500", e);
+      sampleResultFailed(result, e);
+      setFailedSamplerData(result, message);
+    }
+    if (schedule != null) {
+      sampleResultFromIntended((ScheduledSampleResult) result, intendedNanos);
+    }
+    if (batchingProducer != null) {
+      addAcknowledgements(result);
+    } else {
+      List<byte[]> messages = Collections.singletonList(message);
+      setBytes(result, message.length, compression.compressedSize(messages));
     }
     return result;
   }
 
+  /**
+   * Send {@link #sampleMessages} messages and report them as one aggregated sample, so that
+   * JMeter's per-sample overhead is paid once per batch rather than once per message.
+   *
+   * The sample counts every message sent, its bytes are those of the messages it reports, and
+   * its response message and variables give their minimum, mean and maximum latency. Only
+   * failures are attached as sub-results. In async mode, the latencies and failures are those
+   * of the messages acknowledged since the previous sample.
+   */
+  private SampleResult runBatch(JavaSamplerContext context) {
+    SampleResult result = schedule != null ? new ScheduledSampleResult() : newSampleResult();
+    String topic = context.getParameter(PARAMETER_KAFKA_TOPIC);
+    MessageSource source = getMessageSource(context);
+    byte[] message = getMessage(context);
+    List<byte[]> sent = new ArrayList<byte[]>(sampleMessages);
+    LatencySummary summary = new LatencySummary();
+    String failureCode = null;
+    long firstIntendedNanos = 0;
+    for (int i = 0; i < sampleMessages; i++) {
+      if (i > 0 && source != null) {
+        message = source.nextMessageBytes();
+      }
+      Long key = nextKey(context);
+      long intendedNanos = 0;
+      if (schedule != null) {
+        intendedNanos = schedule.next();
+        schedule.awaitNanos(intendedNanos);
+      }
+      byte[] stamped = stampMessage(message, intendedNanos);
+      if (i == 0) {
+        firstIntendedNanos = intendedNanos;
+        sampleResultStart(result, SAMPLER_DATA_NONE.equals(samplerDataRetention)
+            || SAMPLER_DATA_FAILURES.equals(samplerDataRetention) ? null : sampleMessages + " messages to " + topic);
+      }
+      long startNanos = System.nanoTime();
+      try {
+        if (batchingProducer != null) {
+          PendingMessage pending = new PendingMessage(topic, key, stamped, acknowledged);
+          if (schedule != null) {
+            pending.setIntended(schedule.toMillis(intendedNanos), intendedNanos);
+          }
+          batchingProducer.send(pending);
+          outstanding++;
+        } else {
+          transport.send(new KeyedMessage<Long, byte[]>(topic, key, stamped));
+          long latencyNanos = System.nanoTime() - (schedule != null ? intendedNanos : startNanos);
+          summary.add(latencyNanos);
+          recordLatency(topic, key, latencyNanos);
+        }
+        sent.add(stamped);
+      } catch (Exception e) {
+        summary.failures++;
+        String code = addFailure(result, schedule != null ? schedule.toMillis(intendedNanos) : System.currentTimeMillis(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), e);
+        failureCode = failureCode == null ? code : failureCode;
+      }
+    }
+    if (failureCode == null) {
+      sampleResultSuccess(result, null);
+    } else {
+      sampleResultFailed(result, failureCode);
+      if (SAMPLER_DATA_FAILURES.equals(samplerDataRetention)) {
+        result.setSamplerData(sampleMessages + " messages to " + topic);
+      }
+    }
+    if (schedule != null) {
+      sampleResultFromIntended((ScheduledSampleResult) result, firstIntendedNanos);
+    }
+    if (batchingProducer != null) {
+      summarizeAcknowledgements(result, summary);
+    } else {
+      setBytes(result, Compression.uncompressedSize(sent), compression.compressedSize(sent));
+    }
+    result.setSampleCount(sampleMessages);
+    result.setErrorCount(Math.min(summary.failures, sampleMessages));
+    setLatencySummary(result, summary);
+    return result;
+  }
+
+  /**
+   * In async mode with more than one message per sample, add the latencies of every message
+   * acknowledged since the previous sample to the summary and attach only the failures as
+   * sub-results, and set the sample's bytes to those of the acknowledged messages.
+   *
+   * @param result the sample result to which failures are added
+   * @param summary the summary to which the acknowledged latencies are added
+   */
+  private void summarizeAcknowledgements(SampleResult result, LatencySummary summary) {
+    int uncompressedBytes = 0;
+    int compressedBytes = 0;
+    PendingMessage message;
+    while ((message = acknowledged.poll()) != null) {
+      outstanding--;
+      uncompressedBytes += message.getMessage().length;
+      compressedBytes += message.getCompressedBytes();
+      if (message.getException() == null) {
+        summary.add(message.getLatencyNanos());
+        recordLatency(message.getTopic(), message.getKey(), message.getLatencyNanos());
+      } else {
+        summary.failures++;
+        String code = addFailure(result, message.getIntendedMillis(), message.getLatencyMillis(), message.getException());
+        result.setSuccessful(false);
+        result.setResponseCode(code);
+      }
+    }
+    setBytes(result, uncompressedBytes, compressedBytes);
+  }
+
+  /**
+   * Attach a failed send to the sample as a sub-result.
+   *
+   * @param result the sample result to which the failure is added
+   * @param timeStamp the time the send was started or intended
+   * @param elapsed the time until the send failed
+   * @param exception the failure exception
+   * @return the failure's response code
+   */
+  private String addFailure(SampleResult result, long timeStamp, long elapsed, Exception exception) {
+    SampleResult failure = newSampleResult();
+    failure.setSampleLabel("failure");
+    failure.setStampAndTime(timeStamp, elapsed);
+    failure.setSuccessful(false);
+    failure.setResponseCode(Failures.responseCode(exception));
+    setException(failure, exception);
+    result.addRawSubResult(failure);
+    return failure.getResponseCode();
+  }
+
+  /**
+   * Set the sample's response message to the summary, and export its latencies as variables.
+   *
+   * @param result the sample result to update
+   * @param summary the latencies of the messages reported by the sample
+   */
+  private void setLatencySummary(SampleResult result, LatencySummary summary) {
+    long min = TimeUnit.NANOSECONDS.toMicros(summary.getMinNanos());
+    long mean = TimeUnit.NANOSECONDS.toMicros(summary.getMeanNanos());
+    long max = TimeUnit.NANOSECONDS.toMicros(summary.maxNanos);
+    result.setResponseMessage(summary.count + " messages reported, " + summary.failures + " failed; latency min/mean/max "
+        + min + "/" + mean + "/" + max + " us");
+    JMeterVariables variables = JMeterContextService.getContext().getVariables();
+    variables.put(VARIABLE_MIN_LATENCY, String.valueOf(min));
+    variables.put(VARIABLE_MEAN_LATENCY, String.valueOf(mean));
+    variables.put(VARIABLE_MAX_LATENCY, String.valueOf(max));
+  }
+
+  /**
+   * The minimum, mean and maximum latency of the messages reported by one sample.
+   */
+  private static class LatencySummary {
+    private int count;
+    private int failures;
+    private long minNanos = Long.MAX_VALUE;
+    private long maxNanos;
+    private long totalNanos;
+
+    void add(long nanos) {
+      count++;
+      minNanos = Math.min(minNanos, nanos);
+      maxNanos = Math.max(maxNanos, nanos);
+      totalNanos += nanos;
+    }
+
+    long getMinNanos() {
+      return count == 0 ? 0 : minNanos;
+    }
+
+    long getMeanNanos() {
+      return count == 0 ? 0 : totalNanos / count;
+    }
+  }
+
+  /**
+   * Re-time an ended sample from its intended send time rather than its actual start, which
+   * corrects for coordinated omission. The uncorrected time is kept as the sample's latency.
+   *
+   * @param result the ended sample result to change
+   * @param intendedNanos the intended send time, in {@link System#nanoTime()} units
+   */
+  private void sampleResultFromIntended(ScheduledSampleResult result, long intendedNanos) {
+    long uncorrected = result.getTime();
+    result.restart(Math.min(schedule.toMillis(intendedNanos), result.getStartTime()));
+    result.setLatency(uncorrected);
+  }
+
+  /**
+   * A {@link SampleResult} whose start can be moved back to its intended send time once ended,
+   * since {@link SampleResult#setStampAndTime} refuses samples that have already been timed.
+   */
+  private static class ScheduledSampleResult extends SampleResult {
+    private static final long serialVersionUID = 1L;
+
+    ScheduledSampleResult() {
+      setDataEncoding(ENCODING);
+      setDataType(TEXT);
+    }
+
+    void restart(long startMillis) {
+      long endMillis = getEndTime();
+      setStartTime(startMillis);
+      setEndTime(endMillis);
+    }
+  }
+
+  /**
+   * Record a successful send's latency in the latency log, if there is one, tagged with its
+   * partition if the sampler chose it.
+   *
+   * @param topic the topic sent to
+   * @param key the key sent, which is the partition in explicit partition mode
+   * @param nanos the latency from the intended send to the broker ack
+   */
+  private void recordLatency(String topic, Long key, long nanos) {
+    if (latencyLog == null) {
+      return;
+    }
+    LatencyRecorder[] topicRecorders = recorders.get(topic);
+    if (topicRecorders == null) {
+      topicRecorders = new LatencyRecorder[partitionKeys != null ? partitionKeys.length : 1];
+      recorders.put(topic, topicRecorders);
+    }
+    int partition = partitionKeys != null ? key.intValue() : LatencyLog.ANY_PARTITION;
+    int slot = Math.max(0, partition);
+    if (topicRecorders[slot] == null) {
+      topicRecorders[slot] = latencyLog.recorder(topic, partition);
+    }
+    topicRecorders[slot].recordNanos(nanos);
+  }
+
+  /**
+   * Return the next message's key, generated by the key strategy if there is one and otherwise
+   * {@link #PARAMETER_KAFKA_KEY}. In explicit partition mode, this is the partition it maps to.
+   *
+   * @param context the sampler context holding the parameters
+   * @return the key to send
+   */
+  private Long nextKey(JavaSamplerContext context) {
+    long key = keys != null ? keys.nextKey() : context.getLongParameter(PARAMETER_KAFKA_KEY);
+    if (partitionKeys == null) {
+      return key;
+    }
+    int partition = (int) (key % partitionKeys.length);
+    return partitionKeys[partition < 0 ? partition + partitionKeys.length : partition];
+  }
+
+  /**
+   * Prefix the message with its send time if {@link #PARAMETER_KAFKA_TIMESTAMP_HEADER} is set.
+   *
+   * @param message the message to send
+   * @param intendedNanos the intended send time with a target rate, in {@link System#nanoTime()} units
+   * @return the message to send, stamped with its send time if required
+   */
+  private byte[] stampMessage(byte[] message, long intendedNanos) {
+    if (!timestampHeader) {
+      return message;
+    }
+    long sendMillis = schedule != null ? schedule.toMillis(intendedNanos) : System.currentTimeMillis();
+    return MessageTimestamps.prependHeader(sendMillis, message);
+  }
+
+  /**
+   * Set the sample's bytes to the compressed size of its messages, and export both the
+   * uncompressed and compressed sizes as variables.
+   *
+   * @param result the sample result to update
+   * @param uncompressedBytes the total size of the messages
+   * @param compressedBytes the total size of the messages once compressed
+   */
+  private void setBytes(SampleResult result, int uncompressedBytes, int compressedBytes) {
+    result.setBytes(compressedBytes);
+    // JMeter reports the body size as the bytes by default, rather than the bytes set above
+    result.setBodySize(compressedBytes);
+    JMeterVariables variables = JMeterContextService.getContext().getVariables();
+    variables.put(VARIABLE_UNCOMPRESSED_BYTES, String.valueOf(uncompressedBytes));
+    variables.put(VARIABLE_COMPRESSED_BYTES, String.valueOf(compressedBytes));
+  }
+
+  /**
+   * Return the message from the {@code byte[]} variable named by {@link #PARAMETER_KAFKA_MESSAGE_VARIABLE}
+   * if there is one, otherwise the UTF-8 encoding of {@link #PARAMETER_KAFKA_MESSAGE}.
+   *
+   * @param context the sampler context holding the parameters
+   * @return the message to send
+   */
+  private byte[] getMessage(JavaSamplerContext context) {
+    String variableName = context.getParameter(PARAMETER_KAFKA_MESSAGE_VARIABLE, "");
+    if (!variableName.isEmpty()) {
+      Object value = JMeterContextService.getContext().getVariables().getObject(variableName);
+      if (value instanceof byte[]) {
+        return (byte[]) value;
+      } else if (value != null) {
+        return value.toString().getBytes(Charsets.UTF_8);
+      }
+    }
+    return context.getParameter(PARAMETER_KAFKA_MESSAGE).getBytes(Charsets.UTF_8);
+  }
+
+  /**
+   * Return the Load Generator's source of further messages for {@link #PARAMETER_KAFKA_MESSAGE_VARIABLE}.
+   *
+   * @param context the sampler context holding the parameters
+   * @return the message source, or {@code null} if there is none
+   */
+  private @Nullable MessageSource getMessageSource(JavaSamplerContext context) {
+    String variableName = context.getParameter(PARAMETER_KAFKA_MESSAGE_VARIABLE, "");
+    if (variableName.isEmpty()) {
+      return null;
+    }
+    Object source = JMeterContextService.getContext().getVariables()
+        .getObject(variableName + LoadGenerator.SOURCE_VARIABLE_SUFFIX);
+    return source instanceof MessageSource ? (MessageSource) source : null;
+  }
+
+  /**
+   * In async mode, the sample itself only times the enqueue. Every message acknowledged since
+   * the previous sample is attached as a sub-result timed from its intended send (its enqueue,
+   * unless open-loop) to its broker ack, with the time from enqueue to ack as its latency,
+   * and the sample's bytes are those of the acknowledged messages.
+   *
+   * @param result the sample result to which acknowledgements are added
+   */
+  private void addAcknowledgements(SampleResult result) {
+    int uncompressedBytes = 0;
+    int compressedBytes = 0;
+    PendingMessage message;
+    while ((message = acknowledged.poll()) != null) {
+      outstanding--;
+      uncompressedBytes += message.getMessage().length;
+      compressedBytes += message.getCompressedBytes();
+      SampleResult ack = newSampleResult();
+      ack.setSampleLabel("ack");
+      ack.setStampAndTime(message.getIntendedMillis(), message.getLatencyMillis());
+      ack.setLatency(message.getServiceTimeMillis());
+      ack.setBytes(message.getCompressedBytes());
+      if (message.getException() == null) {
+        recordLatency(message.getTopic(), message.getKey(), message.getLatencyNanos());
+        ack.setSuccessful(true);
+        ack.setResponseCodeOK();
+      } else {
+        ack.setSuccessful(false);
+        ack.setResponseCode(Failures.responseCode(message.getException()));
+        setException(ack, message.getException());
+        setFailedSamplerData(ack, message.getMessage());
+        result.setSuccessful(false);
+        result.setResponseCode(ack.getResponseCode());
+      }
+      result.addRawSubResult(ack);
+    }
+    setBytes(result, uncompressedBytes, compressedBytes);
+  }
+
+  /**
+   * In async mode, wait up to {@link #TEARDOWN_TIMEOUT_MILLIS} for the acknowledgements of the
+   * messages sent by this thread's last samples, which arrive after its final sample. Their
+   * latencies are recorded in the latency log, and their outcome is logged, rather than dropped.
+   */
+  private void awaitAcknowledgements() {
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TEARDOWN_TIMEOUT_MILLIS);
+    int succeeded = 0;
+    int failed = 0;
+    Exception lastFailure = null;
+    try {
+      while (outstanding > 0 && System.nanoTime() < deadlineNanos) {
+        PendingMessage message = acknowledged.poll();
+        if (message == null) {
+          Thread.sleep(1);
+          continue;
+        }
+        outstanding--;
+        if (message.getException() == null) {
+          succeeded++;
+          recordLatency(message.getTopic(), message.getKey(), message.getLatencyNanos());
+        } else {
+          failed++;
+          lastFailure = message.getException();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    String summary = "Acknowledgements after the final sample of " + Thread.currentThread().getName()
+        + ": " + succeeded + " succeeded, " + failed + " failed, " + outstanding + " still unacknowledged after "
+        + TEARDOWN_TIMEOUT_MILLIS + " ms";
+    if (failed > 0 || outstanding > 0) {
+      log.warn(summary + (lastFailure != null ? "; last failure: " + lastFailure : ""));
+    } else if (succeeded > 0) {
+      log.info(summary);
+    }
+    outstanding = 0;
+  }
+
   /**
    * Use UTF-8 for encoding of strings
    */
@@ -140,10 +887,12 @@ public class KafkaProducerSampler extends AbstractJavaSamplerClient {
    * @param result
    *          the sample result to update
    * @param data
-   *          the request to set as {@code samplerData}
+   *          the request to set as {@code samplerData}, may be null.
    */
-  private void sampleResultStart(SampleResult result, String data) {
-    result.setSamplerData(data);
+  private void sampleResultStart(SampleResult result, /* @Nullable */ String data) {
+    if (data != null) {
+      result.setSamplerData(data);
+    }
     result.sampleStart();
   }
 
@@ -182,26 +931,56 @@ public class KafkaProducerSampler extends AbstractJavaSamplerClient {
 
   /**
    * Mark the sample result as @{code end}ed and not {@code successful}, set the
-   * {@code responseCode} to {@code reason}, and set {@code responseData} to the stack trace.
+   * {@code responseCode} to the exception's classification, and describe the exception.
    *
    * @param result the sample result to change
    * @param exception the failure exception
    */
-  private void sampleResultFailed(SampleResult result, String reason, Exception exception) {
-    sampleResultFailed(result, reason);
+  private void sampleResultFailed(SampleResult result, Exception exception) {
+    sampleResultFailed(result, Failures.responseCode(exception));
+    setException(result, exception);
+  }
+
+  /**
+   * Set the {@code responseMessage} to the exception, and the {@code responseData} to its
+   * stack trace unless stack traces of its class are being rate limited.
+   *
+   * @param result the sample result to change
+   * @param exception the failure exception
+   */
+  private void setException(SampleResult result, Exception exception) {
     result.setResponseMessage("Exception: " + exception);
-    result.setResponseData(getStackTrace(exception), ENCODING);
+    String stackTrace = Failures.captureStackTrace(exception, stackTraceIntervalMillis);
+    if (stackTrace != null) {
+      result.setResponseData(stackTrace, ENCODING);
+    }
   }
 
   /**
-   * Return the stack trace as a string.
+   * Return the message as sampler data according to {@link #PARAMETER_KAFKA_SAMPLER_DATA}.
    *
-   * @param exception the exception containing the stack trace
-   * @return the stack trace
+   * @param message the message being sent
+   * @param failed whether sending the message failed
+   * @return the sampler data, or {@code null} if none is kept
    */
-  private String getStackTrace(Exception exception) {
-    StringWriter stringWriter = new StringWriter();
-    exception.printStackTrace(new PrintWriter(stringWriter));
-    return stringWriter.toString();
+  private @Nullable String getSamplerData(byte[] message, boolean failed) {
+    if (SAMPLER_DATA_NONE.equals(samplerDataRetention)
+        || (SAMPLER_DATA_FAILURES.equals(samplerDataRetention) && !failed)) {
+      return null;
+    }
+    if (!SAMPLER_DATA_FULL.equals(samplerDataRetention) && message.length > samplerDataMaxBytes) {
+      return new String(message, 0, samplerDataMaxBytes, Charsets.UTF_8) + "...";
+    }
+    return new String(message, Charsets.UTF_8);
+  }
+
+  /**
+   * Keep a failed message as the result's sampler data if only failures are kept, since it was
+   * not decoded when the sample started.
+   */
+  private void setFailedSamplerData(SampleResult result, byte[] message) {
+    if (SAMPLER_DATA_FAILURES.equals(samplerDataRetention)) {
+      result.setSamplerData(getSamplerData(message, true));
+    }
   }
 }
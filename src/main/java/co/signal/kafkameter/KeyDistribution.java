@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import java.util.Random;
+
+import com.google.common.base.Preconditions;
+
+import co.signal.loadgen.NodeShard;
+
+/**
+ * Generates message keys on the sampler's own thread, so that keys need no shared JMeter Counter
+ * and can be skewed like production traffic.
+ *
+ * Keys are drawn from {@code [0, keySpace)}: "sequential" counts through them from the thread's
+ * number, "uniform" draws them uniformly, "zipfian" draws key {@code k} with probability
+ * proportional to {@code 1 / (k + 1)^exponent}, so that the lowest keys are the hottest, and
+ * "hotspot" sends a given share of traffic uniformly to a given fraction of the lowest keys and the
+ * rest uniformly to the others. Instances are not thread-safe.
+ *
+ * When several nodes share the load, each node draws only from its {@link NodeShard} of the
+ * distribution, so that the nodes send disjoint keys of equal total weight. Each strategy maps a
+ * uniform variate to a key in increasing order, so restricting the variate to the node's slice of
+ * the unit interval gives it a contiguous range of keys carrying its share of the weight, which
+ * splits a key hotter than one node's share between several nodes. Hotspot keys slice the hot and
+ * cold keys separately, and sequential keys count through the node's range.
+ */
+abstract class KeyDistribution {
+
+  static final String SEQUENTIAL = "sequential";
+  static final String UNIFORM = "uniform";
+  static final String ZIPFIAN = "zipfian";
+  static final String HOTSPOT = "hotspot";
+
+  /**
+   * @return the next key
+   */
+  abstract long nextKey();
+
+  /**
+   * @return whether the strategy draws its keys from a random stream
+   */
+  static boolean isRandom(String strategy) {
+    return !SEQUENTIAL.equals(strategy);
+  }
+
+  /**
+   * Create the distribution for the given strategy.
+   *
+   * @param strategy one of {@link #SEQUENTIAL}, {@link #UNIFORM}, {@link #ZIPFIAN} or {@link #HOTSPOT}
+   * @param keySpace the number of distinct keys
+   * @param threadNum the calling thread's number, at which sequential keys start
+   * @param random the random stream for the other strategies, or {@code null} for sequential keys
+   * @param zipfExponent the exponent of the Zipfian distribution
+   * @param hotFraction the fraction of keys which are hot
+   * @param hotProbability the probability of sending to a hot key
+   * @param node this node's share of the keys
+   * @throws IllegalArgumentException if the strategy is unknown or its settings are invalid
+   */
+  static KeyDistribution create(String strategy, long keySpace, int threadNum, Random random,
+      double zipfExponent, double hotFraction, double hotProbability, NodeShard node) {
+    Preconditions.checkArgument(keySpace > 0, "Key space must be positive");
+    if (SEQUENTIAL.equals(strategy)) {
+      return new Sequential(keySpace, threadNum, node);
+    } else if (UNIFORM.equals(strategy)) {
+      return new Uniform(keySpace, random, node);
+    } else if (ZIPFIAN.equals(strategy)) {
+      return new Zipfian(keySpace, zipfExponent, random, node);
+    } else if (HOTSPOT.equals(strategy)) {
+      return new Hotspot(keySpace, hotFraction, hotProbability, random, node);
+    }
+    throw new IllegalArgumentException("Unknown key strategy: " + strategy);
+  }
+
+  /**
+   * @return a uniformly random value in the node's slice of {@code [0, bound)}
+   */
+  static long nextLong(Random random, long bound, NodeShard node) {
+    double from = node.getFrom();
+    return Math.min((long) ((from + random.nextDouble() * (node.getTo() - from)) * bound), bound - 1);
+  }
+
+  private static class Sequential extends KeyDistribution {
+    private final long firstKey;
+    private final long endKey;
+    private long next;
+
+    Sequential(long keySpace, int threadNum, NodeShard node) {
+      this.firstKey = (long) (node.getFrom() * keySpace);
+      this.endKey = Math.max(firstKey + 1, (long) (node.getTo() * keySpace));
+      this.next = firstKey + threadNum % (endKey - firstKey);
+    }
+
+    @Override
+    long nextKey() {
+      long key = next;
+      next = next + 1 == endKey ? firstKey : next + 1;
+      return key;
+    }
+  }
+
+  private static class Uniform extends KeyDistribution {
+    private final long keySpace;
+    private final Random random;
+    private final NodeShard node;
+
+    Uniform(long keySpace, Random random, NodeShard node) {
+      this.keySpace = keySpace;
+      this.random = random;
+      this.node = node;
+    }
+
+    @Override
+    long nextKey() {
+      return nextLong(random, keySpace, node);
+    }
+  }
+
+  private static class Hotspot extends KeyDistribution {
+    private final long hotKeys;
+    private final long coldKeys;
+    private final double hotProbability;
+    private final Random random;
+    private final NodeShard node;
+
+    Hotspot(long keySpace, double hotFraction, double hotProbability, Random random, NodeShard node) {
+      Preconditions.checkArgument(hotFraction > 0 && hotFraction <= 1, "Hot key fraction must be in (0, 1]");
+      Preconditions.checkArgument(hotProbability >= 0 && hotProbability <= 1, "Hot key probability must be in [0, 1]");
+      this.hotKeys = Math.max(1, Math.round(keySpace * hotFraction));
+      this.coldKeys = keySpace - hotKeys;
+      this.hotProbability = coldKeys == 0 ? 1 : hotProbability;
+      this.random = random;
+      this.node = node;
+    }
+
+    @Override
+    long nextKey() {
+      if (random.nextDouble() < hotProbability) {
+        return nextLong(random, hotKeys, node);
+      }
+      return hotKeys + nextLong(random, coldKeys, node);
+    }
+  }
+
+  /**
+   * Draws Zipfian keys in constant time and space, however large the key space, by rejection-inversion.
+   *
+   * @see "W. Hormann and G. Derflinger, Rejection-inversion to generate variates from monotone
+   *      discrete distributions, ACM TOMACS 6(3), 1996"
+   */
+  private static class Zipfian extends KeyDistribution {
+    private final long keySpace;
+    private final double exponent;
+    private final Random random;
+    private final double uStart;
+    private final double uRange;
+    private final double s;
+
+    /**
+     * Each key's accepted variates form an interval as long as its weight, in decreasing order of
+     * key, with only small gaps of rejected variates between them, so this node's slice of the
+     * variates holds its share of the keys.
+     */
+    Zipfian(long keySpace, double exponent, Random random, NodeShard node) {
+      Preconditions.checkArgument(exponent > 0, "Zipfian exponent must be positive");
+      this.keySpace = keySpace;
+      this.exponent = exponent;
+      this.random = random;
+      double hIntegralX1 = hIntegral(1.5) - 1;
+      double hIntegralN = hIntegral(keySpace + 0.5);
+      this.uStart = hIntegralN + node.getFrom() * (hIntegralX1 - hIntegralN);
+      this.uRange = (node.getTo() - node.getFrom()) * (hIntegralX1 - hIntegralN);
+      this.s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
+
+    @Override
+    long nextKey() {
+      while (true) {
+        double u = uStart + random.nextDouble() * uRange;
+        double x = hIntegralInverse(u);
+        long k = Math.max(1, Math.min(keySpace, (long) (x + 0.5)));
+        if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+          return k - 1;
+        }
+      }
+    }
+
+    private double h(double x) {
+      return Math.exp(-exponent * Math.log(x));
+    }
+
+    private double hIntegral(double x) {
+      double logX = Math.log(x);
+      return helper2((1 - exponent) * logX) * logX;
+    }
+
+    private double hIntegralInverse(double x) {
+      double t = Math.max(-1, x * (1 - exponent));
+      return Math.exp(helper1(t) * x);
+    }
+
+    /**
+     * @return {@code log1p(x) / x}, accurately for small {@code x}
+     */
+    private static double helper1(double x) {
+      return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+    }
+
+    /**
+     * @return {@code expm1(x) / x}, accurately for small {@code x}
+     */
+    private static double helper2(double x) {
+      return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x * (1.0 / 3) * (1 + 0.25 * x));
+    }
+  }
+}
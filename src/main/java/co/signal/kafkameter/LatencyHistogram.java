@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size histogram of latencies in microseconds, with the log-linear bucketing of
+ * HdrHistogram at two significant digits.
+ *
+ * Values are counted in buckets which double in width from one power of two to the next,
+ * each split into 128 linear sub-buckets, so every recorded value is within 1% of its bucket's
+ * value. Values above one hour are counted as one hour. Recording never allocates.
+ *
+ * @see "http://hdrhistogram.github.io/HdrHistogram/"
+ */
+class LatencyHistogram {
+
+  /**
+   * The largest value tracked, in microseconds; larger values are counted as this.
+   */
+  static final long HIGHEST_TRACKABLE_VALUE = 3600L * 1000 * 1000;
+
+  private static final int SUB_BUCKET_HALF_COUNT_MAGNITUDE = 7;
+  private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_HALF_COUNT_MAGNITUDE;
+  private static final long SUB_BUCKET_MASK = (2L * SUB_BUCKET_HALF_COUNT) - 1;
+  private static final int LEADING_ZERO_COUNT_BASE = 64 - SUB_BUCKET_HALF_COUNT_MAGNITUDE - 1;
+  private static final int COUNTS_LENGTH = countsIndex(HIGHEST_TRACKABLE_VALUE) + 1;
+
+  private final long[] counts = new long[COUNTS_LENGTH];
+  private long totalCount;
+  private long totalValue;
+  private long minValue = Long.MAX_VALUE;
+  private long maxValue;
+
+  /**
+   * Record a latency.
+   *
+   * @param micros the latency in microseconds; negative values are counted as zero
+   */
+  void record(long micros) {
+    long value = Math.min(Math.max(micros, 0), HIGHEST_TRACKABLE_VALUE);
+    counts[countsIndex(value)]++;
+    totalCount++;
+    totalValue += value;
+    minValue = Math.min(minValue, value);
+    maxValue = Math.max(maxValue, value);
+  }
+
+  /**
+   * Add every value recorded by another histogram to this one.
+   */
+  void add(LatencyHistogram other) {
+    if (other.totalCount == 0) {
+      return;
+    }
+    for (int i = 0; i < COUNTS_LENGTH; i++) {
+      counts[i] += other.counts[i];
+    }
+    totalCount += other.totalCount;
+    totalValue += other.totalValue;
+    minValue = Math.min(minValue, other.minValue);
+    maxValue = Math.max(maxValue, other.maxValue);
+  }
+
+  void reset() {
+    Arrays.fill(counts, 0);
+    totalCount = 0;
+    totalValue = 0;
+    minValue = Long.MAX_VALUE;
+    maxValue = 0;
+  }
+
+  long getTotalCount() {
+    return totalCount;
+  }
+
+  /**
+   * @return the smallest value recorded, or zero if the histogram is empty
+   */
+  long getMinValue() {
+    return totalCount == 0 ? 0 : minValue;
+  }
+
+  long getMaxValue() {
+    return maxValue;
+  }
+
+  /**
+   * @return the mean of the recorded values, or zero if the histogram is empty
+   */
+  double getMean() {
+    return totalCount == 0 ? 0 : (double) totalValue / totalCount;
+  }
+
+  /**
+   * Returns the value at the given percentile, as the highest value equivalent to that of the
+   * bucket which holds it, but no more than the largest value actually recorded.
+   *
+   * @param percentile the percentile, from 0 to 100
+   * @return the value at the percentile, or zero if the histogram is empty
+   */
+  long getValueAtPercentile(double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+    long countAtPercentile = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * totalCount));
+    long count = 0;
+    for (int i = 0; i < COUNTS_LENGTH; i++) {
+      count += counts[i];
+      if (count >= countAtPercentile) {
+        return Math.min(highestEquivalentValue(i), maxValue);
+      }
+    }
+    return maxValue;
+  }
+
+  private static int countsIndex(long value) {
+    int bucketIndex = LEADING_ZERO_COUNT_BASE - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK);
+    int subBucketIndex = (int) (value >>> bucketIndex);
+    return ((bucketIndex + 1) << SUB_BUCKET_HALF_COUNT_MAGNITUDE) + (subBucketIndex - SUB_BUCKET_HALF_COUNT);
+  }
+
+  private static long highestEquivalentValue(int index) {
+    int bucketIndex = (index >> SUB_BUCKET_HALF_COUNT_MAGNITUDE) - 1;
+    int subBucketIndex = (index & (SUB_BUCKET_HALF_COUNT - 1)) + SUB_BUCKET_HALF_COUNT;
+    if (bucketIndex < 0) {
+      subBucketIndex -= SUB_BUCKET_HALF_COUNT;
+      bucketIndex = 0;
+    }
+    return (((long) subBucketIndex + 1) << bucketIndex) - 1;
+  }
+}
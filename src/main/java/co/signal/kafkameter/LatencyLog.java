@@ -0,0 +1,262 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Process-wide latency histograms written to a file, independently of JMeter's listeners.
+ *
+ * Sampler threads record into a {@link LatencyRecorder} for every topic and partition they send
+ * to, which they share with the other threads of the same stripe. Each recorder's histogram takes
+ * about 26KB, so the log holds no more than {@link #STRIPES} of them per topic and partition
+ * however many threads record. A background thread merges the recorders for each topic and
+ * partition at a fixed interval and appends the interval's percentiles to the log, and when the last sampler releases
+ * the log it appends a summary of the whole test and logs it too. Like the {@link ProducerPool},
+ * logs are shared by every sampler with the same file and reference counted.
+ */
+class LatencyLog {
+
+  private static final Logger log = LoggingManager.getLoggerForClass();
+
+  /**
+   * The partition of sends for which the producer chooses the partition.
+   */
+  static final int ANY_PARTITION = -1;
+
+  /**
+   * The number of recorders for each topic and partition, among which threads are spread so that
+   * they seldom wait for each other.
+   */
+  static final int STRIPES = Runtime.getRuntime().availableProcessors();
+
+  private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+  private static final Map<String, LatencyLog> logs = new HashMap<String, LatencyLog>();
+
+  private final String fileName;
+  private final long intervalMillis;
+  private final PrintWriter out;
+  private final Map<Tag, TagHistograms> histograms = new LinkedHashMap<Tag, TagHistograms>();
+  private final LatencyHistogram interval = new LatencyHistogram();
+  private final long startMillis = System.currentTimeMillis();
+  private final Thread writer;
+  private long intervalStartMillis = startMillis;
+  private int references;
+
+  private volatile boolean running = true;
+
+  private LatencyLog(String fileName, long intervalMillis) throws IOException {
+    this.fileName = fileName;
+    this.intervalMillis = intervalMillis;
+    this.out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(fileName)), Charsets.UTF_8));
+    out.println("# kafkameter latency log, values in microseconds");
+    out.println("# StartTime: " + startMillis + " (" + new Date(startMillis) + ")");
+    out.println("\"Timestamp\",\"Interval\",\"Topic\",\"Partition\",\"Count\",\"Min\",\"Mean\","
+        + "\"50%\",\"90%\",\"99%\",\"99.9%\",\"99.99%\",\"Max\"");
+    out.flush();
+    this.writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeIntervals();
+      }
+    }, "kafkameter-latency-log");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Open the latency log writing to the given file, creating it if necessary.
+   *
+   * @param fileName the file to which the log is written
+   * @param intervalMillis how often the recorded latencies are written, if this creates the log
+   * @return the log, which must be {@link #release released} when finished
+   */
+  static LatencyLog open(String fileName, long intervalMillis) {
+    Preconditions.checkArgument(intervalMillis > 0, "Latency log interval must be positive");
+    synchronized (logs) {
+      LatencyLog latencyLog = logs.get(fileName);
+      if (latencyLog == null) {
+        try {
+          latencyLog = new LatencyLog(fileName, intervalMillis);
+        } catch (IOException e) {
+          throw Throwables.propagate(e);
+        }
+        logs.put(fileName, latencyLog);
+      } else if (latencyLog.intervalMillis != intervalMillis) {
+        log.warn("Latency log " + fileName + " is already written every " + latencyLog.intervalMillis + " ms");
+      }
+      latencyLog.references++;
+      return latencyLog;
+    }
+  }
+
+  /**
+   * Return the recorder for the calling thread's latencies to the given topic and partition,
+   * which is shared with the other threads of its stripe.
+   *
+   * @param topic the topic sent to
+   * @param partition the partition sent to, or {@link #ANY_PARTITION}
+   * @return the recorder, which the caller may keep for the rest of the test
+   */
+  LatencyRecorder recorder(String topic, int partition) {
+    int stripe = (int) (Thread.currentThread().getId() % STRIPES);
+    synchronized (histograms) {
+      Tag tag = new Tag(topic, partition);
+      TagHistograms tagHistograms = histograms.get(tag);
+      if (tagHistograms == null) {
+        tagHistograms = new TagHistograms(tag);
+        histograms.put(tag, tagHistograms);
+      }
+      return tagHistograms.recorders[stripe];
+    }
+  }
+
+  /**
+   * Release this sampler's use of the log, which is closed once every sampler has released it.
+   */
+  void release() {
+    synchronized (logs) {
+      if (--references > 0) {
+        return;
+      }
+      logs.remove(fileName);
+    }
+    running = false;
+    writer.interrupt();
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    writeInterval();
+    writeSummary();
+    out.close();
+  }
+
+  private void writeIntervals() {
+    while (running) {
+      try {
+        Thread.sleep(intervalMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+      writeInterval();
+    }
+  }
+
+  private void writeInterval() {
+    long now = System.currentTimeMillis();
+    for (TagHistograms tagHistograms : snapshot()) {
+      interval.reset();
+      for (LatencyRecorder recorder : tagHistograms.recorders) {
+        recorder.drainTo(interval);
+      }
+      if (interval.getTotalCount() > 0) {
+        out.println(format(intervalStartMillis, now - intervalStartMillis, tagHistograms.tag, interval));
+        tagHistograms.total.add(interval);
+      }
+    }
+    out.flush();
+    intervalStartMillis = now;
+  }
+
+  private void writeSummary() {
+    long durationMillis = System.currentTimeMillis() - startMillis;
+    out.println("# Summary");
+    for (TagHistograms tagHistograms : snapshot()) {
+      String summary = format(startMillis, durationMillis, tagHistograms.tag, tagHistograms.total);
+      out.println(summary);
+      log.info("Latency summary (microseconds) " + summary);
+    }
+  }
+
+  private List<TagHistograms> snapshot() {
+    synchronized (histograms) {
+      return new ArrayList<TagHistograms>(histograms.values());
+    }
+  }
+
+  private static String format(long timestamp, long intervalMillis, Tag tag, LatencyHistogram histogram) {
+    StringBuilder line = new StringBuilder()
+        .append(timestamp).append(',')
+        .append(intervalMillis).append(',')
+        .append('"').append(tag.topic).append("\",")
+        .append(tag.partition).append(',')
+        .append(histogram.getTotalCount()).append(',')
+        .append(histogram.getMinValue()).append(',')
+        .append(Math.round(histogram.getMean()));
+    for (double percentile : PERCENTILES) {
+      line.append(',').append(histogram.getValueAtPercentile(percentile));
+    }
+    return line.append(',').append(histogram.getMaxValue()).toString();
+  }
+
+  private static class TagHistograms {
+    private final Tag tag;
+    private final LatencyRecorder[] recorders = new LatencyRecorder[STRIPES];
+    private final LatencyHistogram total = new LatencyHistogram();
+
+    TagHistograms(Tag tag) {
+      this.tag = tag;
+      for (int i = 0; i < recorders.length; i++) {
+        recorders[i] = new LatencyRecorder();
+      }
+    }
+  }
+
+  private static class Tag {
+    private final String topic;
+    private final int partition;
+
+    Tag(String topic, int partition) {
+      this.topic = topic;
+      this.partition = partition;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Tag)) {
+        return false;
+      }
+      Tag that = (Tag) obj;
+      return topic.equals(that.topic) && partition == that.partition;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(topic, partition);
+    }
+  }
+}
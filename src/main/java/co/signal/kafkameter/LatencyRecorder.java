@@ -0,0 +1,51 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records latencies into a {@link LatencyHistogram} which another thread periodically merges,
+ * without allocating on the recording threads.
+ *
+ * Recorders may be shared by several threads, so that the latency log needs a fixed number of
+ * them per topic and partition rather than one for every thread. Recording and draining hold the
+ * recorder's monitor only while they update its histogram, which is rarely contended since each
+ * recorder is shared by a fraction of the threads, and drained once an interval.
+ */
+class LatencyRecorder {
+
+  private final LatencyHistogram recorded = new LatencyHistogram();
+
+  /**
+   * Record a latency.
+   *
+   * @param nanos the latency in nanoseconds
+   */
+  synchronized void recordNanos(long nanos) {
+    recorded.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+
+  /**
+   * Add everything recorded since the previous call to the given histogram.
+   *
+   * @param interval the histogram to which the recorded values are added
+   */
+  synchronized void drainTo(LatencyHistogram interval) {
+    interval.add(recorded);
+    recorded.reset();
+  }
+}
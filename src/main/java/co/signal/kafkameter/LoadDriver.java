@@ -0,0 +1,532 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+
+import kafka.producer.KeyedMessage;
+import kafka.serializer.DefaultEncoder;
+import kafka.serializer.NullEncoder;
+
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterVariables;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import co.signal.loadgen.LoadGenerator;
+import co.signal.loadgen.MessageSource;
+import co.signal.loadgen.NodeShard;
+import co.signal.loadgen.RandomStreams;
+
+/**
+ * Drives load from a Load Generator to a {@link Transport} without JMeter, for runs with far more
+ * simulated clients than JMeter can give a thread each.
+ *
+ * A few worker threads, one per core by default, each run an event loop over their share of the
+ * clients, so a client costs a few bytes rather than an OS thread. In closed-loop mode each client
+ * has at most one message outstanding: a worker sends for every client which is ready, and a client
+ * is ready again once its message has been acknowledged and its think time has passed. This needs
+ * the "async" producer type, whose background batching keeps many messages in flight at once, since
+ * a synchronous send completes before the worker moves on. In open-loop mode, with a target rate,
+ * each worker sends on its own {@link ArrivalSchedule} at its share of the rate, cycling through its
+ * clients, and latencies are measured from the intended send time.
+ *
+ * Each worker generates messages from its own generator on its own random stream, as a JMeter thread
+ * would. Every report interval, the throughput and latency percentiles of the messages acknowledged
+ * in the interval are printed, and the latency log is written as by the {@link KafkaProducerSampler}.
+ * Drivers on several hosts share the load by their {@link NodeShard} as JMeter engines would, and
+ * number their clients after those of the nodes before them, so that client keys are disjoint.
+ */
+public class LoadDriver {
+
+  private static final Logger log = LoggingManager.getLoggerForClass();
+
+  /**
+   * The options and their defaults, given on the command line as {@code --name=value}.
+   */
+  static final Map<String, String> DEFAULT_OPTIONS = new LinkedHashMap<String, String>();
+  static {
+    DEFAULT_OPTIONS.put("marshaller", "");
+    DEFAULT_OPTIONS.put("transport", Transports.KAFKA);
+    DEFAULT_OPTIONS.put("brokers", "localhost:9092");
+    DEFAULT_OPTIONS.put("topic", "kafkameter");
+    DEFAULT_OPTIONS.put("clients", "1000");
+    DEFAULT_OPTIONS.put("workers", String.valueOf(Runtime.getRuntime().availableProcessors()));
+    DEFAULT_OPTIONS.put("rate", "0");
+    DEFAULT_OPTIONS.put("arrival", ArrivalSchedule.CONSTANT);
+    DEFAULT_OPTIONS.put("think-ms", "0");
+    DEFAULT_OPTIONS.put("ramp-s", "0");
+    DEFAULT_OPTIONS.put("duration-s", "60");
+    DEFAULT_OPTIONS.put("report-interval-s", "10");
+    DEFAULT_OPTIONS.put("producer-type", "async");
+    DEFAULT_OPTIONS.put("pool-size", "0");
+    DEFAULT_OPTIONS.put("batch-size", "200");
+    DEFAULT_OPTIONS.put("linger-ms", "100");
+    DEFAULT_OPTIONS.put("queue-depth", "10000");
+    DEFAULT_OPTIONS.put("compression", "none");
+    DEFAULT_OPTIONS.put("compression-sample-interval", String.valueOf(Compression.DEFAULT_SAMPLE_INTERVAL));
+    DEFAULT_OPTIONS.put("key-strategy", "client");
+    DEFAULT_OPTIONS.put("key-space", "1000000");
+    DEFAULT_OPTIONS.put("key-zipf-exponent", "0.99");
+    DEFAULT_OPTIONS.put("key-hot-fraction", "0.2");
+    DEFAULT_OPTIONS.put("key-hot-probability", "0.8");
+    DEFAULT_OPTIONS.put("timestamp-header", "false");
+    DEFAULT_OPTIONS.put("transport-file", "kafkameter.corpus");
+    DEFAULT_OPTIONS.put("transport-queue-capacity", "10000");
+    DEFAULT_OPTIONS.put("latency-log", "");
+    DEFAULT_OPTIONS.put("latency-log-interval-ms", "10000");
+    DEFAULT_OPTIONS.put("stack-trace-interval-ms", "60000");
+  }
+
+  /**
+   * The key strategy which keys each message by the number of the client sending it.
+   */
+  private static final String KEY_STRATEGY_CLIENT = "client";
+
+  /**
+   * The longest a worker parks before checking for acknowledgements and stopping.
+   */
+  private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final String className;
+  private final String fileName;
+  private final Map<String, String> options;
+  private final NodeShard node;
+  private final String topic;
+  private final boolean closedLoop;
+  private final long thinkNanos;
+  private final boolean timestampHeader;
+  private final long firstClientKey;
+  private final long stackTraceIntervalMillis;
+  private final Worker[] workers;
+  private final LatencyLog latencyLog;
+  private final LatencyHistogram interval = new LatencyHistogram();
+  private final LatencyHistogram total = new LatencyHistogram();
+
+  private volatile boolean running = true;
+
+  /**
+   * @param className the Load Generator class
+   * @param fileName the Load Description file
+   * @param options the options, as in {@link #DEFAULT_OPTIONS}
+   */
+  LoadDriver(String className, String fileName, Map<String, String> options) {
+    this.className = className;
+    this.fileName = fileName;
+    this.options = options;
+    this.node = NodeShard.current();
+    this.topic = options.get("topic");
+    this.closedLoop = getDouble("rate") <= 0;
+    this.thinkNanos = TimeUnit.MILLISECONDS.toNanos(getLong("think-ms"));
+    this.timestampHeader = Boolean.parseBoolean(options.get("timestamp-header"));
+    this.stackTraceIntervalMillis = getLong("stack-trace-interval-ms");
+    this.latencyLog = Strings.isNullOrEmpty(options.get("latency-log"))
+        ? null : LatencyLog.open(options.get("latency-log"), getLong("latency-log-interval-ms"));
+
+    int clients = (int) getLong("clients");
+    Preconditions.checkArgument(clients > 0, "There must be at least one client");
+    this.firstClientKey = (long) node.getIndex() * clients;
+    this.workers = new Worker[(int) Math.max(1, Math.min(clients, getLong("workers")))];
+    Properties config = producerConfig();
+    ProducerPool.BatchSettings batch = "async".equals(options.get("producer-type"))
+        ? new ProducerPool.BatchSettings((int) getLong("batch-size"), getLong("linger-ms"), (int) getLong("queue-depth"))
+        : null;
+    for (int i = 0; i < workers.length; i++) {
+      int firstClient = (int) ((long) clients * i / workers.length);
+      int endClient = (int) ((long) clients * (i + 1) / workers.length);
+      workers[i] = new Worker(i, firstClient, endClient - firstClient,
+          ProducerPool.lease(config, options.get("transport"), (int) getLong("pool-size"), batch));
+    }
+  }
+
+  private Properties producerConfig() {
+    Properties config = new Properties();
+    config.put("metadata.broker.list", options.get("brokers"));
+    config.put("serializer.class", DefaultEncoder.class.getName());
+    config.put("key.serializer.class", NullEncoder.class.getName());
+    config.put("request.required.acks", "1");
+    config.put("compression.codec", options.get("compression"));
+    config.put(Compression.SAMPLE_INTERVAL_PROPERTY, options.get("compression-sample-interval"));
+    if (Transports.FILE.equals(options.get("transport"))) {
+      config.put(Transports.FILE_PROPERTY, options.get("transport-file"));
+    } else if (Transports.QUEUE.equals(options.get("transport"))) {
+      config.put(Transports.QUEUE_CAPACITY_PROPERTY, options.get("transport-queue-capacity"));
+    }
+    return config;
+  }
+
+  /**
+   * Run the load for its duration, reporting every interval, and then report the whole run.
+   *
+   * @return whether every message was acknowledged without failure
+   */
+  boolean run() throws InterruptedException {
+    if (!node.isWhole()) {
+      System.out.println("Sharing the load as node " + node.getIndex() + " of " + node.getCount());
+    }
+    List<Thread> threads = new ArrayList<Thread>();
+    for (Worker worker : workers) {
+      Thread thread = new Thread(worker, "kafkameter-driver-" + worker.index);
+      thread.start();
+      threads.add(thread);
+    }
+    long reportNanos = TimeUnit.SECONDS.toNanos(getLong("report-interval-s"));
+    long startNanos = System.nanoTime();
+    long endNanos = startNanos + TimeUnit.SECONDS.toNanos(getLong("duration-s"));
+    Totals reported = new Totals();
+    long reportedNanos = startNanos;
+    while (System.nanoTime() < endNanos && failure() == null) {
+      TimeUnit.NANOSECONDS.sleep(Math.max(0, Math.min(reportNanos, endNanos - System.nanoTime())));
+      long now = System.nanoTime();
+      reported = report(reported, now - reportedNanos, now - startNanos);
+      reportedNanos = now;
+    }
+
+    running = false;
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    // the last release flushes every stripe's batches, completing their outstanding messages
+    for (Worker worker : workers) {
+      worker.lease.release();
+    }
+    for (Worker worker : workers) {
+      worker.drainCompletions();
+    }
+    long now = System.nanoTime();
+    reported = report(reported, now - reportedNanos, now - startNanos);
+    if (latencyLog != null) {
+      latencyLog.release();
+    }
+    System.out.println("Total: " + format(reported, reported.sent - reported.acked - reported.failed, now - startNanos, total));
+    Throwable failure = failure();
+    if (failure != null) {
+      throw Throwables.propagate(failure);
+    }
+    return reported.failed == 0;
+  }
+
+  private @Nullable Throwable failure() {
+    for (Worker worker : workers) {
+      if (worker.failure != null) {
+        return worker.failure;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the number of messages acknowledged so far across the workers
+   */
+  long getAcknowledged() {
+    long acked = 0;
+    for (Worker worker : workers) {
+      acked += worker.acked;
+    }
+    return acked;
+  }
+
+  /**
+   * Print the throughput and latencies since the previous report.
+   *
+   * @param previous the totals at the previous report
+   * @param intervalNanos the time since the previous report
+   * @param elapsedNanos the time since the start of the run
+   * @return the totals at this report
+   */
+  private Totals report(Totals previous, long intervalNanos, long elapsedNanos) {
+    Totals totals = new Totals();
+    interval.reset();
+    for (Worker worker : workers) {
+      worker.recorder.drainTo(interval);
+      totals.sent += worker.sent;
+      totals.acked += worker.acked;
+      totals.failed += worker.failed;
+      totals.bytes += worker.bytes;
+    }
+    total.add(interval);
+    Totals delta = new Totals();
+    delta.sent = totals.sent - previous.sent;
+    delta.acked = totals.acked - previous.acked;
+    delta.failed = totals.failed - previous.failed;
+    delta.bytes = totals.bytes - previous.bytes;
+    String line = TimeUnit.NANOSECONDS.toSeconds(elapsedNanos) + " s: "
+        + format(delta, totals.sent - totals.acked - totals.failed, intervalNanos, interval);
+    System.out.println(line);
+    log.info(line);
+    return totals;
+  }
+
+  private static String format(Totals totals, long outstanding, long nanos, LatencyHistogram latencies) {
+    double seconds = Math.max(1, nanos) / 1e9;
+    return "sent " + totals.sent + " (" + Math.round(totals.sent / seconds) + "/s), acked " + totals.acked
+        + " (" + Math.round(totals.acked / seconds) + "/s, " + String.format("%.1f", totals.bytes / seconds / (1 << 20))
+        + " MB/s), failed " + totals.failed + ", outstanding " + outstanding
+        + "; latency min/mean/50%/99%/99.9%/max " + latencies.getMinValue() + "/" + Math.round(latencies.getMean())
+        + "/" + latencies.getValueAtPercentile(50) + "/" + latencies.getValueAtPercentile(99)
+        + "/" + latencies.getValueAtPercentile(99.9) + "/" + latencies.getMaxValue() + " us";
+  }
+
+  private long getLong(String option) {
+    return Long.parseLong(options.get(option).trim());
+  }
+
+  private double getDouble(String option) {
+    return Double.parseDouble(options.get(option).trim());
+  }
+
+  /**
+   * Counts of messages across the workers.
+   */
+  private static class Totals {
+    private long sent;
+    private long acked;
+    private long failed;
+    private long bytes;
+  }
+
+  /**
+   * A message and the client which sent it.
+   */
+  private static class ClientMessage extends PendingMessage {
+    private final int client;
+
+    ClientMessage(String topic, Long key, byte[] message, Queue<PendingMessage> completions, int client) {
+      super(topic, key, message, completions);
+      this.client = client;
+    }
+  }
+
+  /**
+   * One thread's event loop over its share of the clients. Its counters and own recorder are only
+   * written by its own thread, until {@link #drainCompletions} is called once it has stopped.
+   */
+  private class Worker implements Runnable {
+    private final int index;
+    private final int firstClient;
+    private final int clients;
+    private final ProducerPool.Lease lease;
+    private final Queue<PendingMessage> completions = new ConcurrentLinkedQueue<PendingMessage>();
+    private final LatencyRecorder recorder = new LatencyRecorder();
+    private LatencyRecorder logRecorder;
+
+    /**
+     * The acknowledged clients in closed-loop mode, in the order they become ready, which is the
+     * order they were acknowledged since every client thinks for the same time. Clients yet to
+     * start are not queued here, since their ramp start times interleave with these.
+     */
+    private final int[] readyClients;
+    private final long[] readyNanos;
+    private int readyHead;
+    private int readyCount;
+
+    private KeyDistribution keys;
+    private volatile long sent;
+    private volatile long acked;
+    private volatile long failed;
+    private volatile long bytes;
+    private volatile Throwable failure;
+
+    Worker(int index, int firstClient, int clients, ProducerPool.Lease lease) {
+      this.index = index;
+      this.firstClient = firstClient;
+      this.clients = clients;
+      this.lease = lease;
+      this.readyClients = closedLoop ? new int[clients] : null;
+      this.readyNanos = closedLoop ? new long[clients] : null;
+    }
+
+    @Override
+    public void run() {
+      // give each worker its own random streams, as each JMeter thread has
+      JMeterContextService.getContext().setVariables(new JMeterVariables());
+      JMeterContextService.getContext().setThreadNum(index);
+      LoadGenerator generator = new LoadGenerator();
+      generator.setClassName(className);
+      generator.setFileName(fileName);
+      generator.setMarshallerClassName(options.get("marshaller"));
+      generator.setExportBytes(true);
+      // the log's recorders are striped by thread, so take this worker's on its own thread
+      logRecorder = latencyLog == null ? null : latencyLog.recorder(topic, LatencyLog.ANY_PARTITION);
+      try {
+        MessageSource source = generator.open();
+        String keyStrategy = options.get("key-strategy");
+        if (!KEY_STRATEGY_CLIENT.equals(keyStrategy)) {
+          keys = KeyDistribution.create(keyStrategy, getLong("key-space"), index,
+              KeyDistribution.isRandom(keyStrategy) ? RandomStreams.newThreadStream() : null,
+              getDouble("key-zipf-exponent"), getDouble("key-hot-fraction"), getDouble("key-hot-probability"), node);
+        }
+        if (closedLoop) {
+          runClosedLoop(source);
+        } else {
+          runOpenLoop(source);
+        }
+      } catch (Throwable e) {
+        log.error("Load driver worker " + index + " failed", e);
+        failure = e;
+      } finally {
+        generator.threadFinished();
+      }
+    }
+
+    private void runClosedLoop(MessageSource source) throws InterruptedException {
+      long startNanos = System.nanoTime();
+      long rampNanos = TimeUnit.SECONDS.toNanos(getLong("ramp-s"));
+      // clients start in order, so the next to start is merged with the acknowledged clients by ready time
+      int started = 0;
+      while (running) {
+        drainCompletions();
+        long now = System.nanoTime();
+        long startReadyNanos = started < clients ? startNanos + rampNanos * started / clients : now + MAX_PARK_NANOS;
+        long ackedReadyNanos = readyCount > 0 ? readyNanos[readyHead] : now + MAX_PARK_NANOS;
+        if (started < clients && startReadyNanos <= now && startReadyNanos <= ackedReadyNanos) {
+          send(source, firstClient + started++, null, 0);
+        } else if (readyCount > 0 && ackedReadyNanos <= now) {
+          int client = readyClients[readyHead];
+          readyHead = (readyHead + 1) % clients;
+          readyCount--;
+          send(source, client, null, 0);
+        } else {
+          LockSupport.parkNanos(Math.min(Math.min(startReadyNanos, ackedReadyNanos) - now, MAX_PARK_NANOS));
+        }
+      }
+    }
+
+    private void runOpenLoop(MessageSource source) throws InterruptedException {
+      ArrivalSchedule schedule = new ArrivalSchedule(getDouble("rate") / workers.length,
+          ArrivalSchedule.POISSON.equals(options.get("arrival")) ? RandomStreams.newThreadStream() : null);
+      int client = 0;
+      while (running) {
+        long intendedNanos = schedule.next();
+        long remaining;
+        while ((remaining = intendedNanos - System.nanoTime()) > 0 && running) {
+          drainCompletions();
+          LockSupport.parkNanos(Math.min(remaining, MAX_PARK_NANOS));
+        }
+        if (!running) {
+          return;
+        }
+        send(source, firstClient + client, schedule, intendedNanos);
+        client = (client + 1) % clients;
+        drainCompletions();
+      }
+    }
+
+    /**
+     * Send the client's next message, completing it at once unless the transport is batched.
+     *
+     * @param schedule the open-loop schedule, or {@code null} in closed-loop mode
+     * @param intendedNanos the intended send time in open-loop mode
+     */
+    private void send(MessageSource source, int client, @Nullable ArrivalSchedule schedule, long intendedNanos)
+        throws InterruptedException {
+      long intendedMillis = schedule != null ? schedule.toMillis(intendedNanos) : System.currentTimeMillis();
+      byte[] message = source.nextMessageBytes();
+      if (timestampHeader) {
+        message = MessageTimestamps.prependHeader(intendedMillis, message);
+      }
+      Long key = keys != null ? keys.nextKey() : Long.valueOf(firstClientKey + client);
+      ClientMessage pending = new ClientMessage(topic, key, message, completions, client);
+      if (schedule != null) {
+        pending.setIntended(intendedMillis, intendedNanos);
+      }
+      sent++;
+      BatchingProducer batchingProducer = lease.getBatchingProducer();
+      if (batchingProducer != null) {
+        batchingProducer.send(pending);
+        return;
+      }
+      pending.markEnqueued();
+      Exception exception = null;
+      try {
+        lease.getTransport().send(new KeyedMessage<Long, byte[]>(topic, key, message));
+      } catch (Exception e) {
+        exception = e;
+      }
+      pending.complete(System.nanoTime(), exception, message.length);
+    }
+
+    /**
+     * Record every message acknowledged since the last call, readying their clients in closed-loop mode.
+     */
+    void drainCompletions() {
+      PendingMessage message;
+      while ((message = completions.poll()) != null) {
+        if (message.getException() == null) {
+          recorder.recordNanos(message.getLatencyNanos());
+          if (logRecorder != null) {
+            logRecorder.recordNanos(message.getLatencyNanos());
+          }
+          bytes += message.getMessage().length;
+          acked++;
+        } else {
+          Failures.captureStackTrace(message.getException(), stackTraceIntervalMillis);
+          failed++;
+        }
+        if (closedLoop && running) {
+          ready(((ClientMessage) message).client, System.nanoTime() + thinkNanos);
+        }
+      }
+    }
+
+    private void ready(int client, long nanos) {
+      int tail = (readyHead + readyCount) % clients;
+      readyClients[tail] = client;
+      readyNanos[tail] = nanos;
+      readyCount++;
+    }
+  }
+
+  /**
+   * Given a generator class and Load Description file, followed by options as {@code --name=value},
+   * drives load until the duration has passed, and exits with a non-zero status if any message failed.
+   */
+  public static void main(String[] args) throws InterruptedException {
+    if (args.length < 2 || args[0].startsWith("--") || args[1].startsWith("--")) {
+      System.err.println("Usage: LoadDriver <generator class> <description file> [--option=value ...]");
+      System.err.println("Options and their defaults:");
+      for (Map.Entry<String, String> option : DEFAULT_OPTIONS.entrySet()) {
+        System.err.println("  --" + option.getKey() + "=" + option.getValue());
+      }
+      System.exit(2);
+    }
+    Map<String, String> options = new LinkedHashMap<String, String>(DEFAULT_OPTIONS);
+    for (String arg : Arrays.asList(args).subList(2, args.length)) {
+      int equals = arg.indexOf('=');
+      String name = arg.startsWith("--") && equals > 2 ? arg.substring(2, equals) : null;
+      Preconditions.checkArgument(name != null && DEFAULT_OPTIONS.containsKey(name), "Unknown option %s", arg);
+      options.put(name, arg.substring(equals + 1));
+    }
+    System.out.println("Driving " + args[0] + " from " + args[1] + " with " + options);
+    boolean succeeded = new LoadDriver(args[0], args[1], options).run();
+    System.exit(succeeded ? 0 : 1);
+  }
+}
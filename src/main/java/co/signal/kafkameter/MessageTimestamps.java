@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+/**
+ * Reads the send time embedded in each consumed message, for measuring end-to-end latency.
+ *
+ * The "json" format finds the first occurrence of a numeric field, such as the {@code timestamp}
+ * which {@link co.signal.loadgen.example.TagserveLoadGenerator TagserveLoadGenerator} writes,
+ * by scanning the message's bytes rather than parsing it. The "header" format reads the 8-byte
+ * big-endian milliseconds which the {@link KafkaProducerSampler} prepends to each message with
+ * {@code kafka_timestamp_header}; see {@link #prependHeader}. Instances are thread-safe.
+ */
+abstract class MessageTimestamps {
+
+  static final String JSON = "json";
+  static final String HEADER = "header";
+
+  /**
+   * Returned for messages without a readable timestamp.
+   */
+  static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+  /**
+   * The length of the header written by {@link #prependHeader}.
+   */
+  static final int HEADER_BYTES = 8;
+
+  /**
+   * Create the reader for the given format.
+   *
+   * @param format one of {@link #JSON} or {@link #HEADER}
+   * @param field the name of the JSON field holding the timestamp
+   * @throws IllegalArgumentException if the format is unknown
+   */
+  static MessageTimestamps create(String format, String field) {
+    if (JSON.equals(format)) {
+      Preconditions.checkArgument(!field.isEmpty(), "Timestamp field must not be empty");
+      return new Json(field);
+    } else if (HEADER.equals(format)) {
+      return new Header();
+    }
+    throw new IllegalArgumentException("Unknown timestamp format: " + format);
+  }
+
+  /**
+   * @return the message's send time in epoch milliseconds, or {@link #NO_TIMESTAMP}
+   */
+  abstract long getMillis(byte[] message);
+
+  /**
+   * @return a copy of the message prefixed with the send time as 8 big-endian bytes
+   */
+  static byte[] prependHeader(long millis, byte[] message) {
+    byte[] stamped = new byte[HEADER_BYTES + message.length];
+    for (int i = 0; i < HEADER_BYTES; i++) {
+      stamped[i] = (byte) (millis >>> (56 - 8 * i));
+    }
+    System.arraycopy(message, 0, stamped, HEADER_BYTES, message.length);
+    return stamped;
+  }
+
+  private static class Header extends MessageTimestamps {
+    @Override
+    long getMillis(byte[] message) {
+      if (message.length < HEADER_BYTES) {
+        return NO_TIMESTAMP;
+      }
+      long millis = 0;
+      for (int i = 0; i < HEADER_BYTES; i++) {
+        millis = (millis << 8) | (message[i] & 0xff);
+      }
+      return millis;
+    }
+  }
+
+  private static class Json extends MessageTimestamps {
+    private final byte[] name;
+
+    Json(String field) {
+      this.name = ("\"" + field + "\"").getBytes(Charsets.UTF_8);
+    }
+
+    @Override
+    long getMillis(byte[] message) {
+      int i = indexOfName(message);
+      if (i < 0) {
+        return NO_TIMESTAMP;
+      }
+      i = skipWhitespace(message, i + name.length);
+      if (i >= message.length || message[i] != ':') {
+        return NO_TIMESTAMP;
+      }
+      i = skipWhitespace(message, i + 1);
+      boolean negative = i < message.length && message[i] == '-';
+      if (negative) {
+        i++;
+      }
+      int start = i;
+      long millis = 0;
+      for (; i < message.length && message[i] >= '0' && message[i] <= '9' && i - start < 18; i++) {
+        millis = millis * 10 + (message[i] - '0');
+      }
+      return i == start ? NO_TIMESTAMP : negative ? -millis : millis;
+    }
+
+    private int indexOfName(byte[] message) {
+      outer:
+      for (int i = 0; i <= message.length - name.length; i++) {
+        for (int j = 0; j < name.length; j++) {
+          if (message[i + j] != name[j]) {
+            continue outer;
+          }
+        }
+        return i;
+      }
+      return -1;
+    }
+
+    private static int skipWhitespace(byte[] message, int i) {
+      while (i < message.length && (message[i] == ' ' || message[i] == '\t' || message[i] == '\n' || message[i] == '\r')) {
+        i++;
+      }
+      return i;
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * A message handed to a {@link BatchingProducer}, along with the timing needed to report
+ * its enqueue-to-ack latency once the broker has acknowledged it.
+ */
+class PendingMessage {
+  private final String topic;
+  private final Long key;
+  private final byte[] message;
+  private final Queue<PendingMessage> completions;
+
+  private long intendedMillis;
+  private long intendedNanos;
+  private long enqueueMillis;
+  private long enqueueNanos;
+  private volatile long ackNanos;
+  private volatile Exception exception;
+  private volatile int compressedBytes;
+  private volatile boolean completed;
+
+  /**
+   * @param completions the queue this message is added to once it has been acknowledged
+   */
+  PendingMessage(String topic, Long key, byte[] message, Queue<PendingMessage> completions) {
+    this.topic = topic;
+    this.key = key;
+    this.message = message;
+    this.completions = completions;
+  }
+
+  String getTopic() {
+    return topic;
+  }
+
+  Long getKey() {
+    return key;
+  }
+
+  byte[] getMessage() {
+    return message;
+  }
+
+  /**
+   * Set the time at which an open-loop schedule intended this message to be sent.
+   * Otherwise the intended time is when it was enqueued.
+   */
+  void setIntended(long intendedMillis, long intendedNanos) {
+    this.intendedMillis = intendedMillis;
+    this.intendedNanos = intendedNanos;
+  }
+
+  void markEnqueued() {
+    enqueueMillis = System.currentTimeMillis();
+    enqueueNanos = System.nanoTime();
+    if (intendedNanos == 0) {
+      setIntended(enqueueMillis, enqueueNanos);
+    }
+  }
+
+  long getIntendedMillis() {
+    return intendedMillis;
+  }
+
+  long getEnqueueMillis() {
+    return enqueueMillis;
+  }
+
+  long getEnqueueNanos() {
+    return enqueueNanos;
+  }
+
+  /**
+   * Record the broker's response and hand this message back to its owner.
+   *
+   * @param ackNanos the {@link System#nanoTime()} at which the broker responded
+   * @param exception the failure, or {@code null} if the send succeeded
+   * @param compressedBytes this message's share of the compressed batch size
+   */
+  void complete(long ackNanos, @Nullable Exception exception, int compressedBytes) {
+    this.ackNanos = ackNanos;
+    this.exception = exception;
+    this.compressedBytes = compressedBytes;
+    this.completed = true;
+    completions.add(this);
+  }
+
+  /**
+   * @return whether this message has been completed, successfully or not
+   */
+  boolean isCompleted() {
+    return completed;
+  }
+
+  /**
+   * @return this message's share of the size of its batch once compressed
+   */
+  int getCompressedBytes() {
+    return compressedBytes;
+  }
+
+  /**
+   * @return the time from the intended send to broker ack in milliseconds
+   */
+  long getLatencyMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(getLatencyNanos());
+  }
+
+  /**
+   * @return the time from the intended send to broker ack in nanoseconds
+   */
+  long getLatencyNanos() {
+    return ackNanos - intendedNanos;
+  }
+
+  /**
+   * @return the time from enqueue to broker ack in milliseconds, uncorrected for any delay
+   *         between the intended send and the enqueue
+   */
+  long getServiceTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(ackNanos - enqueueNanos);
+  }
+
+  @Nullable Exception getException() {
+    return exception;
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Objects;
+
+import kafka.javaapi.producer.Producer;
+import kafka.producer.ProducerConfig;
+
+/**
+ * Pool of Kafka producers, either private to one sampler or shared process-wide by every sampler
+ * with the same settings.
+ *
+ * Each pool holds a fixed number of stripes, each with its own {@link Transport}, usually a
+ * Kafka {@link Producer} (and
+ * {@link BatchingProducer} in async mode). Samplers are assigned a stripe round-robin when
+ * they lease it, so threads spread evenly across the stripes and always use the same one.
+ * A shared pool is reference counted, and its producers are closed when the last lease is released.
+ *
+ * Sharing is opt-in: Kafka's producer serializes its sends behind a lock, so synchronous samplers
+ * sharing a producer wait for each other's broker round trips. By default each sampler therefore
+ * leases a private pool of one producer, except with the "file" transport, whose file can only
+ * have one writer.
+ */
+class ProducerPool {
+
+  private static final Map<Key, ProducerPool> pools = new HashMap<Key, ProducerPool>();
+
+  /**
+   * Creates the producer for each stripe of the "kafka" transport. Benchmarks replace this to
+   * run without a broker.
+   */
+  static volatile ProducerFactory producerFactory = new ProducerFactory() {
+    @Override
+    public Producer<Long, byte[]> create(ProducerConfig config) {
+      return new Producer<Long, byte[]>(config);
+    }
+  };
+
+  private final Key key;
+  private final Stripe[] stripes;
+  private final AtomicInteger nextStripe = new AtomicInteger();
+  private int references;
+
+  private ProducerPool(Key key) {
+    this.key = key;
+    this.stripes = new Stripe[key.size];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe(key.config, key.transport, i, stripes.length, key.batch);
+    }
+  }
+
+  /**
+   * Lease a stripe from the pool for the given settings, creating the pool if necessary.
+   *
+   * @param config the Kafka producer configuration, along with any properties of the transport
+   * @param transport the transport type; see {@link Transports#create}
+   * @param size the number of producers in the shared pool, or zero for a private producer
+   * @param batch the batch settings for async mode, or {@code null} for synchronous sends
+   * @return the leased stripe, which must be {@link Lease#release released} when finished
+   */
+  static Lease lease(Properties config, String transport, int size, @Nullable BatchSettings batch) {
+    Key key = new Key(config, transport, Math.max(1, size), batch);
+    if (size <= 0 && !Transports.FILE.equals(transport)) {
+      ProducerPool pool = new ProducerPool(key);
+      pool.references++;
+      return new Lease(pool, pool.stripes[0]);
+    }
+    synchronized (pools) {
+      ProducerPool pool = pools.get(key);
+      if (pool == null) {
+        pool = new ProducerPool(key);
+        pools.put(key, pool);
+      }
+      pool.references++;
+      int index = (pool.nextStripe.getAndIncrement() & Integer.MAX_VALUE) % pool.stripes.length;
+      return new Lease(pool, pool.stripes[index]);
+    }
+  }
+
+  private void release() {
+    synchronized (pools) {
+      if (--references > 0) {
+        return;
+      }
+      if (pools.get(key) == this) {
+        pools.remove(key);
+      }
+    }
+    for (Stripe stripe : stripes) {
+      stripe.close();
+    }
+  }
+
+  /**
+   * A sampler's share of a {@link ProducerPool}.
+   */
+  static class Lease {
+    private final ProducerPool pool;
+    private final Stripe stripe;
+    private boolean released;
+
+    private Lease(ProducerPool pool, Stripe stripe) {
+      this.pool = pool;
+      this.stripe = stripe;
+    }
+
+    Transport getTransport() {
+      return stripe.transport;
+    }
+
+    /**
+     * @return the batching producer, or {@code null} if the pool sends synchronously
+     */
+    @Nullable BatchingProducer getBatchingProducer() {
+      return stripe.batchingProducer;
+    }
+
+    void release() {
+      if (!released) {
+        released = true;
+        pool.release();
+      }
+    }
+  }
+
+  /**
+   * Factory for the producers in each pool.
+   */
+  interface ProducerFactory {
+    Producer<Long, byte[]> create(ProducerConfig config);
+  }
+
+  /**
+   * Settings for the {@link BatchingProducer} used in async mode.
+   */
+  static class BatchSettings {
+    private final int batchSize;
+    private final long lingerMillis;
+    private final int queueDepth;
+
+    BatchSettings(int batchSize, long lingerMillis, int queueDepth) {
+      this.batchSize = batchSize;
+      this.lingerMillis = lingerMillis;
+      this.queueDepth = queueDepth;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof BatchSettings)) {
+        return false;
+      }
+      BatchSettings that = (BatchSettings) obj;
+      return batchSize == that.batchSize && lingerMillis == that.lingerMillis && queueDepth == that.queueDepth;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(batchSize, lingerMillis, queueDepth);
+    }
+  }
+
+  private static class Stripe {
+    private final Transport transport;
+    private final BatchingProducer batchingProducer;
+
+    Stripe(Properties config, String transportType, int index, int count, @Nullable BatchSettings batch) {
+      transport = Transports.create(transportType, config, index, count);
+      batchingProducer = batch == null
+          ? null
+          : new BatchingProducer(transport, batch.batchSize, batch.lingerMillis, batch.queueDepth,
+              Compression.estimator(config));
+    }
+
+    void close() {
+      if (batchingProducer != null) {
+        batchingProducer.close();
+      }
+      transport.close();
+    }
+  }
+
+  private static class Key {
+    private final Properties config;
+    private final String transport;
+    private final int size;
+    private final BatchSettings batch;
+
+    Key(Properties config, String transport, int size, @Nullable BatchSettings batch) {
+      this.config = new Properties();
+      this.config.putAll(config);
+      this.transport = transport;
+      this.size = size;
+      this.batch = batch;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      return Arrays.equals(significantAttributes(), ((Key) obj).significantAttributes());
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(significantAttributes());
+    }
+
+    Object[] significantAttributes() {
+      return new Object[] { config, transport, size, batch };
+    }
+  }
+}
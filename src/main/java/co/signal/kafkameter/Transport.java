@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import java.util.List;
+
+import kafka.producer.KeyedMessage;
+
+/**
+ * Where the {@link KafkaProducerSampler} sends its messages: to Kafka, or to a sink which stands in
+ * for it so that the load generation stack can be measured on its own; see {@link Transports}.
+ *
+ * Custom transports may be named by class in the {@code kafka_transport} parameter. They must have
+ * a public constructor taking the producer's {@link java.util.Properties}, and must be thread-safe,
+ * since each is shared by every sampler assigned its stripe of the {@link ProducerPool}.
+ */
+public interface Transport {
+
+  /**
+   * Send a message, returning once the transport has accepted it.
+   */
+  void send(KeyedMessage<Long, byte[]> message);
+
+  /**
+   * Send a batch of messages in one request, returning once the transport has accepted them all.
+   */
+  void send(List<KeyedMessage<Long, byte[]>> messages);
+
+  /**
+   * Release the transport's resources once every sampler using it has finished.
+   */
+  void close();
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+import kafka.javaapi.producer.Producer;
+import kafka.producer.KeyedMessage;
+import kafka.producer.ProducerConfig;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import co.signal.loadgen.MessageCorpus;
+
+/**
+ * The built-in {@link Transport}s.
+ *
+ * Besides "kafka", three sinks stand in for the broker, so that the same test plan can find the
+ * throughput the generator, JMeter and the sampler deliver on their own: "null" discards every
+ * message; "file" appends every message to a memory-mapped {@link MessageCorpus}, which the
+ * {@link co.signal.loadgen.CorpusLoadGenerator CorpusLoadGenerator} can replay; and "queue" hands
+ * every message to a background thread through a bounded queue, blocking while it is full, as the
+ * Kafka client's own send queue would.
+ */
+final class Transports {
+
+  private static final Logger log = LoggingManager.getLoggerForClass();
+
+  static final String KAFKA = "kafka";
+  static final String NULL = "null";
+  static final String FILE = "file";
+  static final String QUEUE = "queue";
+
+  /**
+   * Property naming the file written by the "file" transport.
+   */
+  static final String FILE_PROPERTY = "kafkameter.transport.file";
+
+  /**
+   * Property setting the capacity of the "queue" transport.
+   */
+  static final String QUEUE_CAPACITY_PROPERTY = "kafkameter.transport.queue.capacity";
+
+  private Transports() {}
+
+  /**
+   * Create a transport for one stripe of a {@link ProducerPool}.
+   *
+   * @param type one of {@link #KAFKA}, {@link #NULL}, {@link #FILE} or {@link #QUEUE}, or the class
+   *             name of a custom {@link Transport}
+   * @param config the producer's configuration, along with the transport's own properties
+   * @param stripe the index of the pool's stripe
+   * @param stripes the number of stripes in the pool; each writes its own file if there are several
+   * @throws IllegalArgumentException if the type is neither built in nor a transport class
+   */
+  static Transport create(String type, Properties config, int stripe, int stripes) {
+    if (KAFKA.equals(type)) {
+      return new KafkaTransport(ProducerPool.producerFactory.create(new ProducerConfig(config)));
+    } else if (NULL.equals(type)) {
+      return new NullTransport();
+    } else if (FILE.equals(type)) {
+      String file = config.getProperty(FILE_PROPERTY);
+      Preconditions.checkArgument(file != null && !file.isEmpty(), "The file transport requires a file");
+      return new FileTransport(new File(stripes > 1 ? file + "." + stripe : file));
+    } else if (QUEUE.equals(type)) {
+      return new QueueTransport(Integer.parseInt(config.getProperty(QUEUE_CAPACITY_PROPERTY, "10000")));
+    }
+    try {
+      return Class.forName(type).asSubclass(Transport.class).getConstructor(Properties.class).newInstance(config);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalArgumentException("Unknown transport: " + type, e);
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /**
+   * Sends to Kafka through a synchronous {@link Producer}.
+   */
+  private static class KafkaTransport implements Transport {
+    private final Producer<Long, byte[]> producer;
+
+    KafkaTransport(Producer<Long, byte[]> producer) {
+      this.producer = producer;
+    }
+
+    @Override
+    public void send(KeyedMessage<Long, byte[]> message) {
+      producer.send(message);
+    }
+
+    @Override
+    public void send(List<KeyedMessage<Long, byte[]>> messages) {
+      producer.send(messages);
+    }
+
+    @Override
+    public void close() {
+      producer.close();
+    }
+  }
+
+  private static class NullTransport implements Transport {
+    @Override
+    public void send(KeyedMessage<Long, byte[]> message) {
+    }
+
+    @Override
+    public void send(List<KeyedMessage<Long, byte[]>> messages) {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static class FileTransport implements Transport {
+    private final MessageCorpus.Appender appender;
+
+    FileTransport(File file) {
+      try {
+        appender = MessageCorpus.append(file);
+      } catch (IOException e) {
+        throw Throwables.propagate(e);
+      }
+    }
+
+    @Override
+    public synchronized void send(KeyedMessage<Long, byte[]> message) {
+      try {
+        appender.append(message.message());
+      } catch (IOException e) {
+        throw Throwables.propagate(e);
+      }
+    }
+
+    @Override
+    public synchronized void send(List<KeyedMessage<Long, byte[]>> messages) {
+      for (KeyedMessage<Long, byte[]> message : messages) {
+        send(message);
+      }
+    }
+
+    @Override
+    public synchronized void close() {
+      try {
+        appender.close();
+      } catch (IOException e) {
+        throw Throwables.propagate(e);
+      }
+      log.info("Wrote " + appender.getCount() + " messages to " + appender);
+    }
+  }
+
+  private static class QueueTransport implements Transport {
+    private static final long POLL_MILLIS = 100;
+
+    private final BlockingQueue<KeyedMessage<Long, byte[]>> queue;
+    private final Thread receiver;
+    private volatile boolean running = true;
+    private long received;
+
+    QueueTransport(int capacity) {
+      this.queue = new ArrayBlockingQueue<KeyedMessage<Long, byte[]>>(capacity);
+      this.receiver = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          receive();
+        }
+      }, "kafkameter-queue-transport");
+      this.receiver.setDaemon(true);
+      this.receiver.start();
+    }
+
+    @Override
+    public void send(KeyedMessage<Long, byte[]> message) {
+      try {
+        queue.put(message);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw Throwables.propagate(e);
+      }
+    }
+
+    @Override
+    public void send(List<KeyedMessage<Long, byte[]>> messages) {
+      for (KeyedMessage<Long, byte[]> message : messages) {
+        send(message);
+      }
+    }
+
+    @Override
+    public void close() {
+      running = false;
+      try {
+        receiver.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      log.info("Received " + received + " messages from the queue transport");
+    }
+
+    private void receive() {
+      List<KeyedMessage<Long, byte[]>> messages = new ArrayList<KeyedMessage<Long, byte[]>>();
+      try {
+        while (running || !queue.isEmpty()) {
+          KeyedMessage<Long, byte[]> first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+          if (first == null) {
+            continue;
+          }
+          received += 1 + queue.drainTo(messages);
+          messages.clear();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+/**
+ * A {@link SyntheticLoadGenerator} which can generate its messages directly as bytes.
+ *
+ * The {@link LoadGenerator} exports these bytes as an object variable so that the
+ * {@link co.signal.kafkameter.KafkaProducerSampler KafkaProducerSampler} can send them without
+ * encoding a {@link String} on each iteration. Plain {@link SyntheticLoadGenerator}s are adapted
+ * by {@link ByteLoadGenerators#adapt}.
+ */
+public interface ByteLoadGenerator extends SyntheticLoadGenerator {
+
+  /**
+   * Returns the next generated message as UTF-8 encoded bytes.
+   * This method is called on each JMeter iteration instead of {@link #nextMessage()}.
+   * The caller takes ownership of the returned array.
+   *
+   * @return the next generated message.
+   */
+  byte[] nextMessageBytes();
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+/**
+ * Static utilities for {@link ByteLoadGenerator}s.
+ */
+public final class ByteLoadGenerators {
+
+  private ByteLoadGenerators() {}
+
+  /**
+   * Returns the generator itself if it already generates bytes, otherwise a
+   * {@link ByteLoadGenerator} which encodes each of its messages as UTF-8.
+   */
+  public static ByteLoadGenerator adapt(SyntheticLoadGenerator generator) {
+    if (generator instanceof ByteLoadGenerator) {
+      return (ByteLoadGenerator) generator;
+    }
+    return new Utf8Adapter(generator);
+  }
+
+  /**
+   * Returns a {@link ByteLoadGenerator} which marshals each of the generator's model objects
+   * with the given marshaller instead of using the generator's own message format.
+   *
+   * @throws IllegalArgumentException if the marshaller does not accept the generator's model type
+   */
+  public static <T> ByteLoadGenerator marshalling(ModelLoadGenerator<?> generator, MessageMarshaller<T> marshaller) {
+    Preconditions.checkArgument(marshaller.getModelType().isAssignableFrom(generator.getModelType()),
+        "Marshaller %s accepts %s but generator %s generates %s", marshaller.getClass().getName(),
+        marshaller.getModelType().getName(), generator.getClass().getName(), generator.getModelType().getName());
+    @SuppressWarnings("unchecked")
+    ModelLoadGenerator<? extends T> compatible = (ModelLoadGenerator<? extends T>) generator;
+    return new MarshallingAdapter<T>(compatible, marshaller);
+  }
+
+  private static class MarshallingAdapter<T> implements ByteLoadGenerator {
+    private final ModelLoadGenerator<? extends T> delegate;
+    private final MessageMarshaller<T> marshaller;
+
+    MarshallingAdapter(ModelLoadGenerator<? extends T> delegate, MessageMarshaller<T> marshaller) {
+      this.delegate = delegate;
+      this.marshaller = marshaller;
+    }
+
+    @Override
+    public byte[] nextMessageBytes() {
+      return marshaller.marshal(delegate.nextModel());
+    }
+
+    /**
+     * Marshalled messages may be binary, which decoding as a String would corrupt.
+     *
+     * @throws UnsupportedOperationException always; use {@link #nextMessageBytes} instead
+     */
+    @Override
+    public String nextMessage() {
+      throw new UnsupportedOperationException("Marshalled messages are only generated as bytes");
+    }
+  }
+
+  private static class Utf8Adapter implements ByteLoadGenerator {
+    private final SyntheticLoadGenerator delegate;
+
+    Utf8Adapter(SyntheticLoadGenerator delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public byte[] nextMessageBytes() {
+      return delegate.nextMessage().getBytes(Charsets.UTF_8);
+    }
+
+    @Override
+    public String nextMessage() {
+      return delegate.nextMessage();
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+import com.google.common.base.Charsets;
+
+import org.apache.jmeter.threads.AbstractThreadGroup;
+import org.apache.jmeter.threads.JMeterContext;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterThread;
+import org.apache.jmeter.util.JMeterUtils;
+
+/**
+ * Replays the messages recorded in a {@link MessageCorpus} instead of generating them, so that
+ * pre-generated or captured messages can be sent at the highest rate with no generation cost.
+ *
+ * Give the Load Generator the corpus file as its Load Description. Record one from any generator by
+ * running the {@link LoadGenerator} with the generator class, its description, a message count and
+ * the corpus file:
+ *
+ * <pre>java -cp kafkameter-x.y.z.jar co.signal.loadgen.LoadGenerator className description count corpus</pre>
+ *
+ * The corpus is mapped and indexed once per process, and each thread replays it through its own
+ * cursor. By default each thread replays its own contiguous shard of the corpus, split across the
+ * threads of its thread group, and starts its shard again once it is exhausted. Set the
+ * {@value #SHARD_PROPERTY} JMeter or system property to {@code false} for every thread to replay
+ * the whole corpus, and {@value #LOOP_PROPERTY} to {@code false} for each thread to stop once it
+ * has replayed its messages. When several nodes share the load, the corpus is first split
+ * between the nodes by their {@link NodeShard}, so that no two nodes replay the same messages.
+ */
+public class CorpusLoadGenerator implements ByteLoadGenerator, ShareableLoadGenerator {
+
+  /**
+   * Property for replaying the corpus repeatedly, e.g. {@code -Jkafkameter.corpus.loop=false}.
+   */
+  static final String LOOP_PROPERTY = "kafkameter.corpus.loop";
+
+  /**
+   * Property for splitting the corpus across threads, e.g. {@code -Jkafkameter.corpus.shard=false}.
+   */
+  static final String SHARD_PROPERTY = "kafkameter.corpus.shard";
+
+  private final MessageCorpus corpus;
+  private MessageCorpus.Cursor cursor;
+
+  public CorpusLoadGenerator(File file) throws IOException {
+    this.corpus = MessageCorpus.open(file);
+  }
+
+  private CorpusLoadGenerator(MessageCorpus corpus) {
+    this.corpus = corpus;
+    this.cursor = newCursor();
+  }
+
+  /**
+   * Returns a generator with its own cursor for the calling thread, sharing this one's corpus.
+   */
+  @Override
+  public CorpusLoadGenerator share() {
+    return new CorpusLoadGenerator(corpus);
+  }
+
+  /**
+   * @throws NoSuchElementException once a corpus which does not loop is exhausted, after stopping
+   *         the calling JMeter thread
+   */
+  @Override
+  public byte[] nextMessageBytes() {
+    if (cursor == null) {
+      cursor = newCursor();
+    }
+    byte[] message = cursor.next();
+    if (message == null) {
+      JMeterThread thread = JMeterContextService.getContext().getThread();
+      if (thread != null) {
+        thread.stop();
+      }
+      throw new NoSuchElementException("Replayed all " + cursor.size() + " messages of this thread's shard of " + corpus);
+    }
+    return message;
+  }
+
+  @Override
+  public String nextMessage() {
+    return new String(nextMessageBytes(), Charsets.UTF_8);
+  }
+
+  /**
+   * @return a cursor over this thread's shard of the corpus
+   */
+  private MessageCorpus.Cursor newCursor() {
+    boolean loop = getBooleanProperty(LOOP_PROPERTY, true);
+    NodeShard node = NodeShard.current();
+    if (!getBooleanProperty(SHARD_PROPERTY, true)) {
+      return corpus.cursor(node.getIndex(), node.getCount(), loop);
+    }
+    JMeterContext context = JMeterContextService.getContext();
+    AbstractThreadGroup threadGroup = context.getThreadGroup();
+    int shards = threadGroup == null ? 1 : Math.max(1, threadGroup.getNumThreads());
+    return corpus.cursor(node.getIndex() * shards + context.getThreadNum() % shards, node.getCount() * shards, loop);
+  }
+
+  private static boolean getBooleanProperty(String name, boolean defaultValue) {
+    String value = JMeterUtils.getPropDefault(name, System.getProperty(name));
+    return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+  }
+}
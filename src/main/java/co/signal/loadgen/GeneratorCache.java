@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Process-wide cache of {@link ShareableLoadGenerator}s, keyed by generator class, description file
+ * and the file's modification time.
+ *
+ * The first thread to acquire a key constructs its generator while any others wait for it, so each
+ * description is parsed once however many threads use it. Entries are reference counted and
+ * evicted once every lease is released, as each thread finishes at the end of a test, and a
+ * modified description file is parsed afresh.
+ */
+class GeneratorCache {
+
+  private static final Logger log = LoggingManager.getLoggerForClass();
+
+  private static final Map<Key, Entry> entries = new HashMap<Key, Entry>();
+
+  private GeneratorCache() {
+  }
+
+  /**
+   * Lease the generator for the given class and description file, constructing it if necessary.
+   *
+   * @param className the generator class
+   * @param fileName the Synthetic Load Description file
+   * @param loader constructs the generator if it is not already cached
+   * @return the leased generator, which must be {@link Lease#release released} when finished
+   */
+  static Lease acquire(String className, String fileName, Callable<ShareableLoadGenerator> loader) {
+    File file = new File(fileName);
+    Key key = new Key(className, file.getAbsolutePath(), file.lastModified());
+    Entry entry;
+    boolean load = false;
+    synchronized (entries) {
+      entry = entries.get(key);
+      if (entry == null) {
+        entry = new Entry(key, new FutureTask<ShareableLoadGenerator>(loader));
+        entries.put(key, entry);
+        load = true;
+      }
+      entry.references++;
+    }
+    if (load) {
+      long start = System.currentTimeMillis();
+      entry.generator.run();
+      log.info("Loaded shared " + className + " from " + fileName + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+    Lease lease = new Lease(entry);
+    try {
+      lease.generator = entry.generator.get();
+      return lease;
+    } catch (InterruptedException e) {
+      lease.release();
+      Thread.currentThread().interrupt();
+      throw Throwables.propagate(e);
+    } catch (ExecutionException e) {
+      lease.release();
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  private static void release(Entry entry) {
+    synchronized (entries) {
+      if (--entry.references > 0) {
+        return;
+      }
+      entries.remove(entry.key);
+    }
+    if (entry.generator.isDone() && !entry.generator.isCancelled()) {
+      try {
+        log.info("Evicted shared " + entry.generator.get() + " for " + entry.key.path);
+      } catch (Exception e) {
+        // failed to load, which was reported to every acquirer
+      }
+    }
+  }
+
+  /**
+   * An element's use of a cached generator.
+   */
+  static class Lease {
+    private final Entry entry;
+    private ShareableLoadGenerator generator;
+    private boolean released;
+
+    private Lease(Entry entry) {
+      this.entry = entry;
+    }
+
+    ShareableLoadGenerator getGenerator() {
+      return generator;
+    }
+
+    void release() {
+      if (!released) {
+        released = true;
+        GeneratorCache.release(entry);
+      }
+    }
+  }
+
+  private static class Entry {
+    private final Key key;
+    private final FutureTask<ShareableLoadGenerator> generator;
+    private int references;
+
+    Entry(Key key, FutureTask<ShareableLoadGenerator> generator) {
+      this.key = key;
+      this.generator = generator;
+    }
+  }
+
+  private static class Key {
+    private final String className;
+    private final String path;
+    private final long lastModified;
+
+    Key(String className, String path, long lastModified) {
+      this.className = className;
+      this.path = path;
+      this.lastModified = lastModified;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      return Arrays.equals(significantAttributes(), ((Key) obj).significantAttributes());
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(significantAttributes());
+    }
+
+    Object[] significantAttributes() {
+      return new Object[] { className, path, lastModified };
+    }
+  }
+}
@@ -17,11 +17,16 @@ package co.signal.loadgen;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import javax.annotation.Nullable;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
 import com.google.common.io.Files;
 
@@ -29,6 +34,7 @@ import org.apache.jmeter.config.ConfigTestElement;
 import org.apache.jmeter.engine.event.LoopIterationEvent;
 import org.apache.jmeter.engine.event.LoopIterationListener;
 import org.apache.jmeter.testbeans.TestBean;
+import org.apache.jmeter.testelement.ThreadListener;
 import org.apache.jmeter.threads.JMeterContextService;
 import org.apache.jmeter.threads.JMeterVariables;
 import org.apache.jorphan.logging.LoggingManager;
@@ -38,39 +44,199 @@ import org.apache.log.Logger;
  * Config Element which reads a Synthetic Load Description from a file, generates
  * a domain-specific message, and exports the message under a given variableName.
  *
+ * Messages are normally generated on the JMeter thread. With a positive {@code bufferCapacity}
+ * they are instead generated ahead of time by {@code generatorThreads} background threads, shared
+ * by every thread whose Load Generator has the same settings.
+ * Each thread's {@link MessageSource} is also exported, for samplers sending several messages.
+ * A {@link ShareableLoadGenerator} is constructed once per description file across all threads.
+ * Run {@link #main} to record a generator's messages into a {@link MessageCorpus} for replay.
+ *
  * @author codyaray
  * @since 6/27/14
  */
-public class LoadGenerator extends ConfigTestElement implements TestBean, LoopIterationListener {
+public class LoadGenerator extends ConfigTestElement implements TestBean, LoopIterationListener, ThreadListener {
 
   private static final Logger log = LoggingManager.getLoggerForClass();
 
+  /**
+   * Suffix of the variable under which each thread's {@link MessageSource} is exported.
+   */
+  public static final String SOURCE_VARIABLE_SUFFIX = "_source";
+
   private String fileName;
   private String variableName;
   private String className;
+  private String marshallerClassName;
+  private boolean exportBytes;
+  private int bufferCapacity;
+  private int generatorThreads = 1;
 
-  private SyntheticLoadGenerator generator;
+  private ByteLoadGenerator generator;
+  private PreGenerator preGenerator;
+  private GeneratorCache.Lease shared;
+
+  private final MessageSource source = new MessageSource() {
+    @Override
+    public byte[] nextMessageBytes() {
+      if (preGenerator == null) {
+        return generator.nextMessageBytes();
+      }
+      Object message = preGenerator.take();
+      return message instanceof byte[] ? (byte[]) message : message.toString().getBytes(Charsets.UTF_8);
+    }
+  };
 
   @Override
   public void iterationStart(LoopIterationEvent loopIterationEvent) {
-    if (generator == null) {
-      generator = createGenerator(getClassName(), readFile(getFileName()));
-    }
     JMeterVariables variables = JMeterContextService.getContext().getVariables();
-    variables.put(getVariableName(), generator.nextMessage());
+    if (generator == null && preGenerator == null) {
+      initialize();
+      variables.putObject(getVariableName() + SOURCE_VARIABLE_SUFFIX, source);
+    }
+    if (preGenerator != null) {
+      variables.putObject(getVariableName(), preGenerator.take());
+    } else if (exportsBytes()) {
+      variables.putObject(getVariableName(), generator.nextMessageBytes());
+    } else {
+      variables.put(getVariableName(), generator.nextMessage());
+    }
+  }
+
+  private void initialize() {
+    if (getBufferCapacity() <= 0) {
+      generator = createByteGenerator(loadConfig());
+      return;
+    }
+    File file = new File(getFileName());
+    List<Object> settings = Arrays.<Object>asList(getClassName(), file.getAbsolutePath(), file.lastModified(),
+        getMarshallerClassName(), exportsBytes(), getBufferCapacity(), getGeneratorThreads());
+    preGenerator = PreGenerator.acquire(settings, new Callable<PreGenerator>() {
+      @Override
+      public PreGenerator call() {
+        String config = loadConfig();
+        List<ByteLoadGenerator> generators = new ArrayList<ByteLoadGenerator>();
+        for (int i = 0; i < Math.max(1, getGeneratorThreads()); i++) {
+          generators.add(createByteGenerator(config));
+        }
+        return new PreGenerator(generators, exportsBytes(), getBufferCapacity());
+      }
+    });
+  }
+
+  /**
+   * Marshalled messages are always exported as bytes, since binary formats such as Protocol Buffers
+   * would not survive being decoded as a String and encoded again.
+   *
+   * @return whether messages are exported as {@code byte[]} objects rather than Strings
+   */
+  private boolean exportsBytes() {
+    return isExportBytes() || !Strings.isNullOrEmpty(getMarshallerClassName());
+  }
+
+  /**
+   * Lease the shared generator if the class is shareable, and otherwise read the Load Description
+   * unless the generator reads the file itself.
+   *
+   * @return the Load Description, or {@code null} if the generator does not take it as a String
+   */
+  private @Nullable String loadConfig() {
+    if (isShareable(getClassName())) {
+      shared = GeneratorCache.acquire(getClassName(), getFileName(), new Callable<ShareableLoadGenerator>() {
+        @Override
+        public ShareableLoadGenerator call() {
+          String config = readsFile(getClassName()) ? null : readFile(getFileName());
+          return (ShareableLoadGenerator) createGenerator(getClassName(), config);
+        }
+      });
+    }
+    return shared != null || readsFile(getClassName()) ? null : readFile(getFileName());
+  }
+
+  private ByteLoadGenerator createByteGenerator(@Nullable String config) {
+    SyntheticLoadGenerator generator = shared != null
+        ? shared.getGenerator().share() : createGenerator(getClassName(), config);
+    if (Strings.isNullOrEmpty(getMarshallerClassName())) {
+      return ByteLoadGenerators.adapt(generator);
+    }
+    if (!(generator instanceof ModelLoadGenerator)) {
+      throw new IllegalArgumentException("Load Generator class " + getClassName()
+          + " does not implement " + ModelLoadGenerator.class.getSimpleName() + " so cannot use a marshaller");
+    }
+    return ByteLoadGenerators.marshalling((ModelLoadGenerator<?>) generator, createMarshaller(getMarshallerClassName()));
+  }
+
+  private MessageMarshaller<?> createMarshaller(String className) {
+    try {
+      return (MessageMarshaller<?>) Class.forName(className, false, Thread.currentThread().getContextClassLoader())
+          .getConstructor().newInstance();
+    } catch (Exception e) {
+      log.fatalError("Exception initializing Message Marshaller class: " + className, e);
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public void threadStarted() {
+  }
+
+  @Override
+  public void threadFinished() {
+    if (preGenerator != null) {
+      preGenerator.release();
+      preGenerator = null;
+    }
+    if (shared != null) {
+      shared.release();
+      shared = null;
+    }
   }
 
   private SyntheticLoadGenerator createGenerator(String className, @Nullable String config) {
     try {
-      return (SyntheticLoadGenerator) Class.forName(
-          className, false, Thread.currentThread().getContextClassLoader()
-      ).getConstructor(String.class).newInstance(config);
+      Class<?> generatorClass = Class.forName(className, false, Thread.currentThread().getContextClassLoader());
+      if (hasFileConstructor(generatorClass)) {
+        return (SyntheticLoadGenerator) generatorClass.getConstructor(File.class).newInstance(new File(getFileName()));
+      }
+      return (SyntheticLoadGenerator) generatorClass.getConstructor(String.class).newInstance(config);
     } catch (Exception e) {
       log.fatalError("Exception initializing Load Generator class: " + className, e);
       throw Throwables.propagate(e);
     }
   }
 
+  /**
+   * @return whether the generator class reads the Load Description file itself
+   */
+  private static boolean readsFile(String className) {
+    Class<?> generatorClass = findClass(className);
+    return generatorClass != null && hasFileConstructor(generatorClass);
+  }
+
+  /**
+   * @return whether one instance of the generator class may be shared by every thread
+   */
+  private static boolean isShareable(String className) {
+    Class<?> generatorClass = findClass(className);
+    return generatorClass != null && ShareableLoadGenerator.class.isAssignableFrom(generatorClass);
+  }
+
+  private static @Nullable Class<?> findClass(String className) {
+    try {
+      return Class.forName(className, false, Thread.currentThread().getContextClassLoader());
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  private static boolean hasFileConstructor(Class<?> generatorClass) {
+    try {
+      generatorClass.getConstructor(File.class);
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
   private static @Nullable String readFile(String filename) {
     try {
       return Files.toString(new File(filename), Charsets.UTF_8);
@@ -123,14 +289,109 @@ public class LoadGenerator extends ConfigTestElement implements TestBean, LoopIt
   }
 
   /**
-   * Helper for testing outside of JMeter
+   * @return the className of the marshaller for the generated model objects, or empty for the generator's own format
+   */
+  public String getMarshallerClassName() {
+    return marshallerClassName;
+  }
+
+  /**
+   * @param marshallerClassName the className of the {@link MessageMarshaller}, or empty for the generator's own format
+   */
+  public void setMarshallerClassName(String marshallerClassName) {
+    this.marshallerClassName = marshallerClassName;
+  }
+
+  /**
+   * @return whether the message is exported as a {@code byte[]} object rather than a String
+   */
+  public boolean isExportBytes() {
+    return exportBytes;
+  }
+
+  /**
+   * @param exportBytes whether to export the message as a {@code byte[]} object rather than a String
+   */
+  public void setExportBytes(boolean exportBytes) {
+    this.exportBytes = exportBytes;
+  }
+
+  /**
+   * @return the number of pre-generated messages to buffer, or zero to generate on each iteration
+   */
+  public int getBufferCapacity() {
+    return bufferCapacity;
+  }
+
+  /**
+   * @param bufferCapacity the number of pre-generated messages to buffer, or zero to disable pre-generation
    */
-  public static void main(String[] args) {
+  public void setBufferCapacity(int bufferCapacity) {
+    this.bufferCapacity = bufferCapacity;
+  }
+
+  /**
+   * @return the number of threads pre-generating messages
+   */
+  public int getGeneratorThreads() {
+    return generatorThreads;
+  }
+
+  /**
+   * @param generatorThreads the number of threads pre-generating messages
+   */
+  public void setGeneratorThreads(int generatorThreads) {
+    this.generatorThreads = generatorThreads;
+  }
+
+  /**
+   * Create the calling thread's generator outside JMeter, as {@link #iterationStart} would, and
+   * return its source of messages. Call {@link #threadFinished} once finished with it.
+   *
+   * @return the source of the generator's messages
+   */
+  public MessageSource open() {
+    if (generator == null && preGenerator == null) {
+      initialize();
+    }
+    return source;
+  }
+
+  /**
+   * Record the next {@code count} messages into a corpus file for the {@link CorpusLoadGenerator}.
+   *
+   * @return the number of bytes written
+   */
+  long record(long count, File corpus) throws IOException {
+    try {
+      return MessageCorpus.record(open(), count, corpus);
+    } finally {
+      threadFinished();
+    }
+  }
+
+  /**
+   * Helper for testing outside of JMeter. Given a generator class, Load Description file, message
+   * count and corpus file, and optionally a marshaller class, records that many messages into the
+   * corpus for the {@link CorpusLoadGenerator}.
+   */
+  public static void main(String[] args) throws IOException {
     LoadGenerator generator = new LoadGenerator();
 
     // Mock out JMeter environment
     JMeterVariables variables = new JMeterVariables();
     JMeterContextService.getContext().setVariables(variables);
+
+    if (args.length >= 4) {
+      generator.setClassName(args[0]);
+      generator.setFileName(args[1]);
+      generator.setMarshallerClassName(args.length > 4 ? args[4] : null);
+      long start = System.currentTimeMillis();
+      long bytes = generator.record(Long.parseLong(args[2]), new File(args[3]));
+      System.out.println("Recorded " + args[2] + " messages (" + bytes + " bytes) in "
+          + (System.currentTimeMillis() - start) + " ms");
+      return;
+    }
     generator.setFileName("config1.json");
     generator.setVariableName("kafka_message");
 
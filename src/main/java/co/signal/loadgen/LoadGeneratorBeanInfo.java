@@ -41,15 +41,23 @@ public class LoadGeneratorBeanInfo extends BeanInfoSupport {
   private static final String FILENAME = "fileName";
   private static final String VARIABLE_NAME = "variableName";
   private static final String CLASS_NAME = "className";
+  private static final String MARSHALLER_CLASS_NAME = "marshallerClassName";
+  private static final String EXPORT_BYTES = "exportBytes";
+  private static final String BUFFER_CAPACITY = "bufferCapacity";
+  private static final String GENERATOR_THREADS = "generatorThreads";
 
   public LoadGeneratorBeanInfo() {
     super(LoadGenerator.class);
 
     createPropertyGroup("load_generator", new String[] {
-        CLASS_NAME, FILENAME, VARIABLE_NAME
+        CLASS_NAME, MARSHALLER_CLASS_NAME, FILENAME, VARIABLE_NAME, EXPORT_BYTES
     });
 
-    List<String> classes = findAvailableImplementations();
+    createPropertyGroup("pre_generation", new String[] {
+        BUFFER_CAPACITY, GENERATOR_THREADS
+    });
+
+    List<String> classes = findAvailableImplementations(SyntheticLoadGenerator.class);
     PropertyDescriptor p = property(CLASS_NAME);
     p.setValue(NOT_UNDEFINED, Boolean.TRUE);
     p.setValue(DEFAULT, classes.get(0));
@@ -57,6 +65,12 @@ public class LoadGeneratorBeanInfo extends BeanInfoSupport {
     p.setValue(NOT_OTHER, Boolean.TRUE);
     p.setValue(TAGS, Iterables.toArray(classes, String.class));
 
+    p = property(MARSHALLER_CLASS_NAME);
+    p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+    p.setValue(DEFAULT, "");
+    p.setValue(NOT_EXPRESSION, Boolean.TRUE);
+    p.setValue(TAGS, Iterables.toArray(findAvailableImplementations(MessageMarshaller.class), String.class));
+
     p = property(FILENAME);
     p.setValue(NOT_UNDEFINED, Boolean.TRUE);
     p.setValue(DEFAULT, "");
@@ -66,14 +80,26 @@ public class LoadGeneratorBeanInfo extends BeanInfoSupport {
     p.setValue(NOT_UNDEFINED, Boolean.TRUE);
     p.setValue(DEFAULT, "");
     p.setValue(NOT_EXPRESSION, Boolean.TRUE);
+
+    p = property(EXPORT_BYTES);
+    p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+    p.setValue(DEFAULT, Boolean.FALSE);
+
+    p = property(BUFFER_CAPACITY);
+    p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+    p.setValue(DEFAULT, Integer.valueOf(0));
+
+    p = property(GENERATOR_THREADS);
+    p.setValue(NOT_UNDEFINED, Boolean.TRUE);
+    p.setValue(DEFAULT, Integer.valueOf(1));
   }
 
-  private static List<String> findAvailableImplementations() {
+  private static List<String> findAvailableImplementations(Class<?> superClass) {
     try {
       return ClassFinder.findClassesThatExtend(
-          JMeterUtils.getSearchPaths(), new Class[] { SyntheticLoadGenerator.class });
+          JMeterUtils.getSearchPaths(), new Class[] { superClass });
     } catch (IOException e) {
-      log.fatalError("Exception finding SyntheticLoadGenerator implementations", e);
+      log.fatalError("Exception finding " + superClass.getSimpleName() + " implementations", e);
       throw Throwables.propagate(e);
     }
   }
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Reads files through memory mappings rather than copying them onto the heap, for Synthetic Load
+ * Descriptions too large to read into a {@link String}.
+ *
+ * Streams map the file in windows of {@value #WINDOW_BYTES} bytes, so files of any size may be
+ * read while only the window being read need be resident.
+ */
+public final class MappedFiles {
+
+  private static final int WINDOW_BYTES = 1 << 28;
+
+  private MappedFiles() {}
+
+  /**
+   * @return a stream of the file's bytes
+   */
+  public static InputStream open(File file) throws IOException {
+    return new MappedInputStream(new RandomAccessFile(file, "r").getChannel());
+  }
+
+  /**
+   * @return a reader of the file's characters, decoded as UTF-8
+   */
+  public static Reader openUtf8(File file) throws IOException {
+    return new InputStreamReader(open(file), Charsets.UTF_8);
+  }
+
+  /**
+   * Map the whole file read-only. The mapping remains valid until garbage collected.
+   *
+   * @return the mapped file, positioned at its start
+   * @throws IOException if the file cannot be read or is larger than 2 GB
+   */
+  public static MappedByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Cannot map " + file + " of more than 2 GB");
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static class MappedInputStream extends InputStream {
+    private final FileChannel channel;
+    private final long size;
+    private long position;
+    private ByteBuffer window = ByteBuffer.allocate(0);
+
+    MappedInputStream(FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.size = channel.size();
+    }
+
+    @Override
+    public int read() throws IOException {
+      return nextWindow() ? window.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      if (!nextWindow()) {
+        return -1;
+      }
+      int count = Math.min(length, window.remaining());
+      window.get(bytes, offset, count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return window.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+
+    /**
+     * @return whether there are bytes remaining, mapping the next window if necessary
+     */
+    private boolean nextWindow() throws IOException {
+      if (window.hasRemaining()) {
+        return true;
+      }
+      if (position >= size) {
+        return false;
+      }
+      long length = Math.min(WINDOW_BYTES, size - position);
+      window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+      position += length;
+      return true;
+    }
+  }
+}
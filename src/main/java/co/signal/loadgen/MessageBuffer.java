@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+import java.util.Arrays;
+
+/**
+ * A growable byte array for building messages, with helpers for common encodings.
+ *
+ * Buffers are meant to be reset and reused between messages, for example through
+ * {@link #forCurrentThread()}, so that the only allocation per message is the final
+ * {@link #toByteArray()}. Instances are not thread-safe.
+ */
+public final class MessageBuffer {
+
+  private static final byte[] MIN_LONG = String.valueOf(Long.MIN_VALUE).getBytes();
+
+  private static final ThreadLocal<MessageBuffer> buffers = new ThreadLocal<MessageBuffer>() {
+    @Override
+    protected MessageBuffer initialValue() {
+      return new MessageBuffer(256);
+    }
+  };
+
+  private byte[] bytes;
+  private int count;
+
+  public MessageBuffer(int initialCapacity) {
+    bytes = new byte[Math.max(1, initialCapacity)];
+  }
+
+  /**
+   * Returns the calling thread's buffer, after resetting it. The buffer must not be held
+   * across calls which might also use it.
+   */
+  public static MessageBuffer forCurrentThread() {
+    MessageBuffer buffer = buffers.get();
+    buffer.reset();
+    return buffer;
+  }
+
+  public void reset() {
+    count = 0;
+  }
+
+  /**
+   * @return the number of bytes written
+   */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * @return a copy of the bytes written
+   */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(bytes, count);
+  }
+
+  private void ensureCapacity(int additional) {
+    if (count + additional > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, count + additional));
+    }
+  }
+
+  /**
+   * Writes the low eight bits of {@code b}.
+   */
+  public void write(int b) {
+    ensureCapacity(1);
+    bytes[count++] = (byte) b;
+  }
+
+  public void write(byte[] b) {
+    ensureCapacity(b.length);
+    System.arraycopy(b, 0, bytes, count, b.length);
+    count += b.length;
+  }
+
+  /**
+   * Writes {@code value} as ASCII decimal digits, as by {@link Long#toString(long)}.
+   */
+  public void writeDecimal(long value) {
+    if (value == Long.MIN_VALUE) {
+      write(MIN_LONG);
+      return;
+    }
+    if (value < 0) {
+      write('-');
+      value = -value;
+    }
+    int digits = 1;
+    for (long v = value; v >= 10; v /= 10) {
+      digits++;
+    }
+    ensureCapacity(digits);
+    int end = count + digits;
+    for (int i = end - 1; i >= count; i--) {
+      bytes[i] = (byte) ('0' + (value % 10));
+      value /= 10;
+    }
+    count = end;
+  }
+
+  /**
+   * Writes {@code value} as an unsigned base-128 varint, least significant group first.
+   */
+  public void writeVarint(long value) {
+    ensureCapacity(10);
+    while ((value & ~0x7fL) != 0) {
+      bytes[count++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    bytes[count++] = (byte) value;
+  }
+
+  /**
+   * Writes {@code value} as a zig-zag encoded varint, so small negative numbers stay short.
+   */
+  public void writeZigZag(long value) {
+    writeVarint(zigZag(value));
+  }
+
+  /**
+   * @return the number of bytes {@link #writeVarint} uses for {@code value}
+   */
+  public static int varintSize(long value) {
+    int size = 1;
+    while ((value & ~0x7fL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  /**
+   * @return {@code value} mapped to an unsigned number by interleaving positives and negatives
+   */
+  public static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+}
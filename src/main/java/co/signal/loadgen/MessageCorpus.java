@@ -0,0 +1,312 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A file of recorded messages, memory-mapped for replay by the {@link CorpusLoadGenerator}.
+ *
+ * The format is a big-endian header of {@link #MAGIC} and {@link #VERSION} followed by each message
+ * as its length and its bytes. Opening a corpus scans the lengths once to index the messages, and
+ * maps the file in segments of up to 2 GB which each hold whole messages, so corpora of any size may
+ * be replayed while only the pages being read need be resident. A corpus is immutable once opened,
+ * and may be read by any number of {@link Cursor}s concurrently.
+ */
+public final class MessageCorpus {
+
+  /**
+   * The first four bytes of a corpus, "KMCP".
+   */
+  static final int MAGIC = 0x4B4D4350;
+
+  static final int VERSION = 1;
+
+  private static final int HEADER_BYTES = 8;
+
+  private final File file;
+  private final ByteBuffer[] segments;
+  private final int[] segmentFirstMessages;
+  private final int[] positions;
+
+  private MessageCorpus(File file, ByteBuffer[] segments, int[] segmentFirstMessages, int[] positions) {
+    this.file = file;
+    this.segments = segments;
+    this.segmentFirstMessages = segmentFirstMessages;
+    this.positions = positions;
+  }
+
+  /**
+   * Record the next {@code count} messages of the source into a new corpus file.
+   *
+   * @return the number of bytes written
+   */
+  public static long record(MessageSource source, long count, File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      for (long i = 0; i < count; i++) {
+        byte[] message = source.nextMessageBytes();
+        out.writeInt(message.length);
+        out.write(message);
+      }
+    } finally {
+      out.close();
+    }
+    return file.length();
+  }
+
+  /**
+   * Create a new corpus file to which messages are appended as they are sent.
+   *
+   * @return the appender, which must be {@link Appender#close closed} to complete the file
+   */
+  public static Appender append(File file) throws IOException {
+    return new Appender(file);
+  }
+
+  /**
+   * Map and index a corpus file.
+   *
+   * @throws IOException if the file cannot be read, is not a corpus, or is truncated
+   */
+  public static MessageCorpus open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+      List<Integer> segmentFirstMessages = new ArrayList<Integer>();
+      int[] positions = new int[1024];
+      int count = 0;
+
+      long segmentStart = 0;
+      ByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+      if (segment.limit() < HEADER_BYTES || segment.getInt(0) != MAGIC) {
+        throw new IOException(file + " is not a message corpus");
+      }
+      if (segment.getInt(4) != VERSION) {
+        throw new IOException("Unsupported message corpus version " + segment.getInt(4) + " in " + file);
+      }
+      int position = HEADER_BYTES;
+      while (segmentStart + position < size) {
+        if (!fits(segment, position)) {
+          if (position == 0) {
+            throw new IOException("Corrupt or truncated message corpus " + file + " at offset " + segmentStart);
+          }
+          segments.add(segment);
+          segmentStart += position;
+          segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, Math.min(size - segmentStart, Integer.MAX_VALUE));
+          position = 0;
+          continue;
+        }
+        if (segmentFirstMessages.size() == segments.size()) {
+          segmentFirstMessages.add(count);
+        }
+        if (count == positions.length) {
+          Preconditions.checkState(count < Integer.MAX_VALUE - 8, "Message corpus %s has too many messages", file);
+          positions = Arrays.copyOf(positions, (int) Math.min(count * 2L, Integer.MAX_VALUE - 8));
+        }
+        positions[count++] = position;
+        position += 4 + segment.getInt(position);
+      }
+      segments.add(segment);
+      if (segmentFirstMessages.size() < segments.size()) {
+        segmentFirstMessages.add(count);
+      }
+
+      int[] firstMessages = new int[segmentFirstMessages.size()];
+      for (int i = 0; i < firstMessages.length; i++) {
+        firstMessages[i] = segmentFirstMessages.get(i);
+      }
+      return new MessageCorpus(file, segments.toArray(new ByteBuffer[segments.size()]), firstMessages,
+          Arrays.copyOf(positions, count));
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * @return whether the segment holds the whole message at the given position
+   */
+  private static boolean fits(ByteBuffer segment, int position) {
+    if (position > segment.limit() - 4) {
+      return false;
+    }
+    int length = segment.getInt(position);
+    return length >= 0 && length <= segment.limit() - 4 - position;
+  }
+
+  /**
+   * @return the number of messages in the corpus
+   */
+  public int size() {
+    return positions.length;
+  }
+
+  /**
+   * Returns a cursor over one contiguous shard of the corpus. Splitting a corpus into as many
+   * shards as there are threads gives each thread its own messages to replay.
+   *
+   * @param shard the index of the shard, from zero
+   * @param shards the number of shards
+   * @param loop whether to replay the shard from its start once it is exhausted
+   * @throws IllegalArgumentException if there are more shards than messages
+   */
+  public Cursor cursor(int shard, int shards, boolean loop) {
+    Preconditions.checkArgument(shard >= 0 && shard < shards, "Shard %s is not in [0, %s)", shard, shards);
+    Preconditions.checkArgument(shards <= size(), "Cannot split %s messages of %s into %s shards", size(), file, shards);
+    int start = (int) ((long) size() * shard / shards);
+    int end = (int) ((long) size() * (shard + 1) / shards);
+    return new Cursor(start, end, loop);
+  }
+
+  @Override
+  public String toString() {
+    return file.toString();
+  }
+
+  /**
+   * Appends messages to a new corpus through a memory-mapped window which is remapped further along
+   * the file as it fills, so that each message costs a copy into the page cache rather than a write
+   * system call. Closing truncates the file to the messages appended. Instances are not thread-safe.
+   */
+  public static final class Appender {
+    private static final int WINDOW_BYTES = 64 << 20;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private ByteBuffer window;
+    private long windowStart;
+    private long count;
+
+    private Appender(File file) throws IOException {
+      this.file = file;
+      this.raf = new RandomAccessFile(file, "rw");
+      raf.setLength(0);
+      this.channel = raf.getChannel();
+      this.window = channel.map(FileChannel.MapMode.READ_WRITE, 0, WINDOW_BYTES);
+      window.putInt(MAGIC);
+      window.putInt(VERSION);
+    }
+
+    /**
+     * Append a message to the corpus.
+     */
+    public void append(byte[] message) throws IOException {
+      if (window.remaining() < 4 + message.length) {
+        windowStart += window.position();
+        window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, Math.max(WINDOW_BYTES, 4 + message.length));
+      }
+      window.putInt(message.length);
+      window.put(message);
+      count++;
+    }
+
+    /**
+     * @return the number of messages appended
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Truncate the file to the messages appended and close it.
+     */
+    public void close() throws IOException {
+      try {
+        channel.truncate(windowStart + window.position());
+      } finally {
+        raf.close();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return file.toString();
+    }
+  }
+
+  /**
+   * A single thread's position in a shard of the corpus, reading from its own views of the mapped
+   * segments. Instances are not thread-safe.
+   */
+  public class Cursor {
+    private final ByteBuffer[] views = new ByteBuffer[segments.length];
+    private final int start;
+    private final int end;
+    private final boolean loop;
+    private int next;
+
+    private Cursor(int start, int end, boolean loop) {
+      for (int i = 0; i < views.length; i++) {
+        views[i] = segments[i].duplicate();
+      }
+      this.start = start;
+      this.end = end;
+      this.loop = loop;
+      this.next = start;
+    }
+
+    /**
+     * Returns a copy of the next message in the shard.
+     *
+     * @return the next message, or {@code null} once a shard which does not loop is exhausted
+     */
+    public @Nullable byte[] next() {
+      if (next == end) {
+        if (!loop) {
+          return null;
+        }
+        next = start;
+      }
+      int message = next++;
+      int segment = Arrays.binarySearch(segmentFirstMessages, message);
+      if (segment < 0) {
+        segment = -segment - 2;
+      }
+      ByteBuffer view = views[segment];
+      int position = positions[message];
+      byte[] bytes = new byte[view.getInt(position)];
+      view.position(position + 4);
+      view.get(bytes);
+      return bytes;
+    }
+
+    /**
+     * @return the number of messages in this cursor's shard
+     */
+    public int size() {
+      return end - start;
+    }
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+/**
+ * Converts a domain-specific model object into the bytes of a message.
+ *
+ * Marshallers may be selected in the {@link LoadGenerator} for any {@link ModelLoadGenerator}
+ * with a compatible model type, so the distribution of the load and its wire format can be
+ * chosen independently. Implementations must have a public no-argument constructor. Each
+ * generator gets its own marshaller instance, so implementations need not be thread-safe.
+ *
+ * @param <T> the type of model object
+ */
+public interface MessageMarshaller<T> {
+
+  /**
+   * @return the type of model object this marshaller accepts
+   */
+  Class<T> getModelType();
+
+  /**
+   * Returns the message bytes for the model object. The caller takes ownership of the array.
+   *
+   * @param model the model object to marshal
+   * @return the marshalled message
+   */
+  byte[] marshal(T model);
+}
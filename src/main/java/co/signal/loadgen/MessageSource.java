@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+/**
+ * A source of further messages from a {@link LoadGenerator}, for samplers which send several
+ * messages per sample rather than the one exported on each iteration.
+ *
+ * The {@link LoadGenerator} exports its thread's source under its variable name followed by
+ * {@link LoadGenerator#SOURCE_VARIABLE_SUFFIX}. A source must only be used by that thread.
+ */
+public interface MessageSource {
+
+  /**
+   * Returns the next message as bytes, generating or taking it from the pre-generation buffer
+   * as the {@link LoadGenerator} is configured. The caller takes ownership of the returned array.
+   *
+   * @return the next message
+   */
+  byte[] nextMessageBytes();
+}
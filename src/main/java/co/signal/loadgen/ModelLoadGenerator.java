@@ -0,0 +1,38 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+/**
+ * A {@link SyntheticLoadGenerator} which exposes the model objects behind its messages, so that
+ * they may be marshalled by any compatible {@link MessageMarshaller} instead of its own format.
+ *
+ * @param <T> the type of model object
+ */
+public interface ModelLoadGenerator<T> extends SyntheticLoadGenerator {
+
+  /**
+   * @return the type of model object generated
+   */
+  Class<T> getModelType();
+
+  /**
+   * Returns the next generated model object.
+   * This method is called on each JMeter iteration when a {@link MessageMarshaller} is selected.
+   *
+   * @return the next generated model object.
+   */
+  T nextModel();
+}
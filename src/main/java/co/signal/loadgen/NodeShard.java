@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+import org.apache.jmeter.util.JMeterUtils;
+
+/**
+ * This node's share of the load when several JMeter engines run the same test plan, as in
+ * distributed mode, where every remote engine would otherwise load the same Load Description and
+ * generate the same distribution.
+ *
+ * Give each engine its index and the number of engines with the {@value #INDEX_PROPERTY} and
+ * {@value #COUNT_PROPERTY} JMeter or system properties. The node then owns the slice of the unit
+ * interval from {@code index / count} to {@code (index + 1) / count}. Generators lay their sites or
+ * keys end to end along that interval by weight, so each node takes a disjoint share of equal
+ * weight, which it renormalizes into a distribution of its own. The few items straddling a
+ * boundary are split between the neighbouring nodes in proportion, so the nodes together reproduce
+ * the whole distribution at {@code count} times the throughput of one.
+ */
+public final class NodeShard {
+
+  /**
+   * Property for this node's index from zero, e.g. {@code -Jkafkameter.node.index=2}.
+   */
+  public static final String INDEX_PROPERTY = "kafkameter.node.index";
+
+  /**
+   * Property for the number of nodes sharing the load, e.g. {@code -Jkafkameter.node.count=4}.
+   */
+  public static final String COUNT_PROPERTY = "kafkameter.node.count";
+
+  /**
+   * The shard of a node generating the whole load on its own.
+   */
+  public static final NodeShard WHOLE = new NodeShard(0, 1);
+
+  private final int index;
+  private final int count;
+
+  /**
+   * @throws IllegalArgumentException unless {@code 0 <= index < count}
+   */
+  public NodeShard(int index, int count) {
+    Preconditions.checkArgument(count > 0, "Node count must be positive");
+    Preconditions.checkArgument(index >= 0 && index < count, "Node index must be in [0, %s)", count);
+    this.index = index;
+    this.count = count;
+  }
+
+  /**
+   * @return this node's shard according to the {@value #INDEX_PROPERTY} and {@value #COUNT_PROPERTY}
+   *         properties, or {@link #WHOLE} if they are not set
+   */
+  public static NodeShard current() {
+    int count = getIntProperty(COUNT_PROPERTY, 1);
+    return count == 1 ? WHOLE : new NodeShard(getIntProperty(INDEX_PROPERTY, 0), count);
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * @return whether this node generates the whole load
+   */
+  public boolean isWhole() {
+    return count == 1;
+  }
+
+  /**
+   * @return the start of this node's slice of the unit interval
+   */
+  public double getFrom() {
+    return (double) index / count;
+  }
+
+  /**
+   * @return the end of this node's slice of the unit interval
+   */
+  public double getTo() {
+    return (double) (index + 1) / count;
+  }
+
+  /**
+   * Returns this node's share of each weight. The weights are laid end to end in order, and each
+   * keeps only the part overlapping this node's slice of their sum, so the shares of every node
+   * add up to the given weights.
+   *
+   * @param weights the non-negative weight of each item across all the nodes
+   * @return the weights of this node's items, zero for those of the other nodes
+   */
+  public double[] share(double[] weights) {
+    if (isWhole()) {
+      return weights.clone();
+    }
+    double total = WeightedSampler.sum(weights);
+    double from = total * getFrom();
+    double to = total * getTo();
+    double[] shares = new double[weights.length];
+    double start = 0;
+    for (int i = 0; i < weights.length; i++) {
+      double end = start + weights[i];
+      shares[i] = Math.max(0, Math.min(end, to) - Math.max(start, from));
+      start = end;
+    }
+    return shares;
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("index", index)
+        .add("count", count)
+        .toString();
+  }
+
+  private static int getIntProperty(String name, int defaultValue) {
+    String value = JMeterUtils.getPropDefault(name, System.getProperty(name));
+    return value == null || value.trim().isEmpty() ? defaultValue : Integer.parseInt(value.trim());
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Throwables;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Generates messages ahead of time on dedicated threads into a {@link RingBuffer}, so that
+ * taking the next message costs a dequeue rather than a call to the generator.
+ *
+ * Each generator thread has its own {@link ByteLoadGenerator}, so implementations need not be
+ * thread-safe. Whenever {@link #take()} finds the buffer empty it counts a starvation and waits,
+ * which indicates that message generation rather than the system under test is the bottleneck.
+ *
+ * One pre-generator is shared process-wide by every JMeter thread whose Load Generator has the same
+ * settings, so there are only as many generator threads as configured however many sampler threads
+ * take from the buffer. It is reference counted, and its threads are stopped when the last thread
+ * releases it. Waits on a full or empty buffer back off exponentially, so that neither generator
+ * threads waiting on a full buffer nor many sampler threads waiting on an empty one take the CPU
+ * from the threads with work to do.
+ */
+class PreGenerator {
+
+  private static final Logger log = LoggingManager.getLoggerForClass();
+
+  private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+  /**
+   * The longest a thread waits between polls of an empty buffer or offers to a full one.
+   */
+  private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static final Map<Object, PreGenerator> shared = new HashMap<Object, PreGenerator>();
+
+  private final RingBuffer<Object> buffer;
+  private final List<Thread> threads = new ArrayList<Thread>();
+  private final AtomicLong starvations = new AtomicLong();
+  private final AtomicLong starvedNanos = new AtomicLong();
+  private Object key;
+  private int references;
+
+  private volatile boolean running = true;
+
+  /**
+   * @param generators one generator for each generator thread
+   * @param bytes whether to generate {@code byte[]} messages rather than Strings
+   * @param capacity the number of messages to buffer
+   */
+  PreGenerator(List<ByteLoadGenerator> generators, final boolean bytes, int capacity) {
+    buffer = new RingBuffer<Object>(capacity);
+    for (final ByteLoadGenerator generator : generators) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          generate(generator, bytes);
+        }
+      }, "kafkameter-pregenerator-" + threads.size());
+      thread.setDaemon(true);
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+  }
+
+  /**
+   * Lease the pre-generator shared by every Load Generator with the same settings, creating and
+   * starting it if necessary.
+   *
+   * @param key the Load Generator's settings, which must implement {@code equals} and {@code hashCode}
+   * @param factory creates the pre-generator if none is shared for the key
+   * @return the shared pre-generator, which must be {@link #release released} when finished
+   */
+  static PreGenerator acquire(Object key, Callable<PreGenerator> factory) {
+    synchronized (shared) {
+      PreGenerator preGenerator = shared.get(key);
+      if (preGenerator == null) {
+        try {
+          preGenerator = factory.call();
+        } catch (Exception e) {
+          throw Throwables.propagate(e);
+        }
+        preGenerator.key = key;
+        shared.put(key, preGenerator);
+      }
+      preGenerator.references++;
+      return preGenerator;
+    }
+  }
+
+  /**
+   * Release a lease from {@link #acquire}, stopping the generator threads once the last is released.
+   */
+  void release() {
+    synchronized (shared) {
+      if (--references > 0) {
+        return;
+      }
+      shared.remove(key);
+    }
+    stop();
+  }
+
+  /**
+   * Returns the next message, waiting for one to be generated if the buffer is empty.
+   *
+   * @return the next message, as a {@link String} or {@code byte[]}
+   */
+  Object take() {
+    Object message = buffer.poll();
+    if (message == null) {
+      starvations.incrementAndGet();
+      long start = System.nanoTime();
+      long parkNanos = MIN_PARK_NANOS;
+      while ((message = buffer.poll()) == null) {
+        if (!isGenerating()) {
+          throw new IllegalStateException("Pre-generation threads have stopped");
+        }
+        LockSupport.parkNanos(parkNanos);
+        parkNanos = Math.min(parkNanos * 2, MAX_PARK_NANOS);
+      }
+      starvedNanos.addAndGet(System.nanoTime() - start);
+    }
+    return message;
+  }
+
+  /**
+   * Stop the generator threads and log the starvation counters.
+   */
+  private void stop() {
+    running = false;
+    for (Thread thread : threads) {
+      thread.interrupt();
+    }
+    log.info("Pre-generation took " + getTaken() + " messages; starved " + getStarvations()
+        + " times for " + TimeUnit.NANOSECONDS.toMillis(getStarvedNanos()) + " ms");
+  }
+
+  /**
+   * @return the number of messages taken from the buffer
+   */
+  long getTaken() {
+    return buffer.polled();
+  }
+
+  /**
+   * @return the number of times {@link #take()} found the buffer empty
+   */
+  long getStarvations() {
+    return starvations.get();
+  }
+
+  /**
+   * @return the total time {@link #take()} spent waiting on an empty buffer
+   */
+  long getStarvedNanos() {
+    return starvedNanos.get();
+  }
+
+  private boolean isGenerating() {
+    for (Thread thread : threads) {
+      if (thread.isAlive()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void generate(ByteLoadGenerator generator, boolean bytes) {
+    try {
+      while (running) {
+        Object message = bytes ? generator.nextMessageBytes() : generator.nextMessage();
+        long parkNanos = MIN_PARK_NANOS;
+        while (!buffer.offer(message)) {
+          if (!running) {
+            return;
+          }
+          LockSupport.parkNanos(parkNanos);
+          parkNanos = Math.min(parkNanos * 2, MAX_PARK_NANOS);
+        }
+      }
+    } catch (RuntimeException e) {
+      log.error("Pre-generation thread failed", e);
+    }
+  }
+}
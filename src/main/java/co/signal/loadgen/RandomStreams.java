@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+import java.util.Random;
+
+import org.apache.jmeter.threads.AbstractThreadGroup;
+import org.apache.jmeter.threads.JMeterContext;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Independent, reproducible random streams derived from a single master seed.
+ *
+ * The master seed is read from the {@value #SEED_PROPERTY} JMeter or system property, and
+ * otherwise chosen at random and logged so the run can be replayed. Each stream is a
+ * {@link SplitMixRandom} determined only by the master seed and the stream's keys, so
+ * generators never contend on a shared {@link Random} and the same seed always reproduces
+ * the same messages. When several nodes share the load, each node's thread streams are also keyed
+ * by its {@link NodeShard} index, so that nodes given the same seed still draw different messages.
+ */
+public final class RandomStreams {
+
+  private static final Logger log = LoggingManager.getLoggerForClass();
+
+  /**
+   * Property for setting the master seed, e.g. {@code -Jkafkameter.seed=42}.
+   */
+  public static final String SEED_PROPERTY = "kafkameter.seed";
+
+  private static final long masterSeed = initialMasterSeed();
+
+  private static final ThreadLocal<int[]> threadOrdinals = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[1];
+    }
+  };
+
+  private RandomStreams() {}
+
+  /**
+   * @return the master seed from which every stream is derived
+   */
+  public static long getMasterSeed() {
+    return masterSeed;
+  }
+
+  /**
+   * Returns the stream identified by the given keys. The same keys always yield the same stream
+   * for the same master seed, and different keys yield independent streams.
+   */
+  public static SplitMixRandom stream(long... keys) {
+    long seed = masterSeed;
+    for (long key : keys) {
+      seed = SplitMixRandom.mix64(seed ^ SplitMixRandom.mix64(key));
+    }
+    return new SplitMixRandom(seed);
+  }
+
+  /**
+   * Returns a new stream for the calling thread, keyed by its JMeter thread group and thread
+   * number along with the number of streams this thread has already created. Generators
+   * created in the same order by the same JMeter thread therefore replay the same messages.
+   * When the load is sharded across nodes, the stream is keyed by the node's index too.
+   */
+  public static SplitMixRandom newThreadStream() {
+    JMeterContext context = JMeterContextService.getContext();
+    AbstractThreadGroup threadGroup = context.getThreadGroup();
+    long group = threadGroup == null || threadGroup.getName() == null ? 0 : threadGroup.getName().hashCode();
+    int ordinal = threadOrdinals.get()[0]++;
+    NodeShard node = NodeShard.current();
+    if (node.isWhole()) {
+      return stream(group, context.getThreadNum(), ordinal);
+    }
+    return stream(group, context.getThreadNum(), ordinal, node.getIndex());
+  }
+
+  private static long initialMasterSeed() {
+    String configured = JMeterUtils.getPropDefault(SEED_PROPERTY, System.getProperty(SEED_PROPERTY));
+    if (configured != null && !configured.trim().isEmpty()) {
+      return Long.parseLong(configured.trim());
+    }
+    long seed = SplitMixRandom.mix64(System.currentTimeMillis() ^ System.nanoTime());
+    log.info("Using random master seed " + seed + "; set " + SEED_PROPERTY + " to reproduce this run");
+    return seed;
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Bounded, lock-free, multi-producer multi-consumer queue.
+ *
+ * Each slot carries a sequence number which tells producers and consumers whose turn it is,
+ * so they only contend on the head or tail counter and never block one another.
+ *
+ * @see "http://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue"
+ */
+final class RingBuffer<T> {
+
+  private final int mask;
+  private final AtomicReferenceArray<T> elements;
+  private final AtomicLongArray sequences;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * @param capacity the minimum capacity, rounded up to a power of two
+   */
+  RingBuffer(int capacity) {
+    Preconditions.checkArgument(capacity > 0 && capacity <= 1 << 30, "Capacity must be in (0, 2^30]");
+    int size = Integer.highestOneBit(capacity - 1) << 1;
+    if (capacity == 1) {
+      size = 1;
+    }
+    mask = size - 1;
+    elements = new AtomicReferenceArray<T>(size);
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * @return the actual capacity of the buffer
+   */
+  int capacity() {
+    return mask + 1;
+  }
+
+  /**
+   * @return the number of elements removed from the buffer so far
+   */
+  long polled() {
+    return head.get();
+  }
+
+  /**
+   * Adds the element unless the buffer is full.
+   *
+   * @return whether the element was added
+   */
+  boolean offer(T element) {
+    long position = tail.get();
+    int index;
+    while (true) {
+      index = (int) position & mask;
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          break;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+    elements.lazySet(index, element);
+    sequences.lazySet(index, position + 1);
+    return true;
+  }
+
+  /**
+   * Removes the oldest element, if there is one.
+   *
+   * @return the oldest element, or {@code null} if the buffer is empty
+   */
+  T poll() {
+    long position = head.get();
+    int index;
+    while (true) {
+      index = (int) position & mask;
+      long difference = sequences.get(index) - (position + 1);
+      if (difference == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          break;
+        }
+        position = head.get();
+      } else if (difference < 0) {
+        return null;
+      } else {
+        position = head.get();
+      }
+    }
+    T element = elements.get(index);
+    elements.lazySet(index, null);
+    sequences.lazySet(index, position + mask + 1);
+    return element;
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+/**
+ * A {@link SyntheticLoadGenerator} whose parsed Synthetic Load Description may be shared by every
+ * thread in the process.
+ *
+ * The {@link LoadGenerator} constructs a single instance for each generator class, description file
+ * and modification time, however many threads and elements use it, and each thread then generates
+ * from its own {@link #share() share} of it. Generators which are themselves thread-safe may simply
+ * return {@code this}.
+ */
+public interface ShareableLoadGenerator extends SyntheticLoadGenerator {
+
+  /**
+   * Returns a generator for use by the calling thread, sharing this generator's immutable state.
+   * This is called on the JMeter thread, so per-thread state such as a {@link RandomStreams}
+   * stream should be created here.
+   *
+   * @return a generator for the calling thread
+   */
+  SyntheticLoadGenerator share();
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+import java.util.Random;
+
+/**
+ * A {@link Random} implementing the SplitMix64 algorithm, which can be {@link #split() split}
+ * into statistically independent streams.
+ *
+ * Unlike {@link Random}, instances are not thread-safe and never contend on a shared seed.
+ * Each thread should use its own instance, for example from {@link RandomStreams}.
+ *
+ * @see "http://gee.cs.oswego.edu/dl/papers/oopsla14.pdf"
+ */
+public class SplitMixRandom extends Random {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+  private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+  private long state;
+  private final long gamma;
+
+  public SplitMixRandom(long seed) {
+    this(seed, GOLDEN_GAMMA);
+  }
+
+  private SplitMixRandom(long seed, long gamma) {
+    super(0);
+    this.state = seed;
+    this.gamma = gamma;
+  }
+
+  /**
+   * Returns a new generator whose values are independent of those from this one.
+   * This also advances this generator's state.
+   */
+  public SplitMixRandom split() {
+    return new SplitMixRandom(nextLong(), mixGamma(nextState()));
+  }
+
+  @Override
+  public void setSeed(long seed) {
+    // Called by Random's constructor before our own fields are assigned
+    this.state = seed;
+  }
+
+  @Override
+  protected int next(int bits) {
+    return (int) (nextLong() >>> (64 - bits));
+  }
+
+  @Override
+  public long nextLong() {
+    return mix64(nextState());
+  }
+
+  @Override
+  public int nextInt() {
+    return (int) nextLong();
+  }
+
+  @Override
+  public double nextDouble() {
+    return (nextLong() >>> 11) * DOUBLE_UNIT;
+  }
+
+  @Override
+  public boolean nextBoolean() {
+    return nextLong() < 0;
+  }
+
+  private long nextState() {
+    return state += gamma;
+  }
+
+  /**
+   * Scrambles the bits of {@code z}, so that nearby inputs yield unrelated outputs.
+   */
+  static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  private static long mixGamma(long z) {
+    z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+    z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    z = (z ^ (z >>> 33)) | 1L;
+    // Avoid gammas with too few bit transitions, which produce poorly distributed streams
+    return Long.bitCount(z ^ (z >>> 1)) < 24 ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+  }
+}
@@ -21,6 +21,9 @@ package co.signal.loadgen;
  * Implementations must have a constructor which takes the configuration as a single
  * {@link javax.annotation.Nullable @Nullable} {@link String} argument. This string optionally
  * contains a Synthetic Load Description which will have a format specific to each application.
+ * Implementations with a constructor which takes a single {@link java.io.File} argument are instead
+ * given the Load Description's file to read themselves, so that very large descriptions need not
+ * be read into a {@link String}, for example by streaming them through {@link MappedFiles}.
  *
  * @author codyaray
  * @since 7/17/14
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+import java.util.Random;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Samples indices in constant time according to a fixed set of weights, using Vose's alias method.
+ *
+ * The weights are normalized on construction, so they need only be proportional to the desired
+ * probabilities. Each sample costs a single random variate, regardless of the number of weights.
+ * Instances are immutable and may be shared between threads, provided each thread uses its own
+ * {@link Random}.
+ *
+ * @see "http://www.keithschwarz.com/darts-dice-coins/"
+ */
+public final class WeightedSampler {
+
+  private final double[] probabilities;
+  private final int[] aliases;
+
+  /**
+   * @param weights the non-negative weight of each index, with a positive sum
+   * @throws IllegalArgumentException if the weights are empty, negative, or sum to zero
+   */
+  public WeightedSampler(double[] weights) {
+    int n = weights.length;
+    Preconditions.checkArgument(n > 0, "At least one weight is required");
+    double sum = sum(weights);
+    Preconditions.checkArgument(sum > 0 && !Double.isInfinite(sum), "Weights must have a positive, finite sum");
+
+    probabilities = new double[n];
+    aliases = new int[n];
+
+    // Scale each weight so the average is 1, then pair each under-full index with an over-full one
+    double[] scaled = new double[n];
+    int[] small = new int[n];
+    int[] large = new int[n];
+    int smallCount = 0;
+    int largeCount = 0;
+    for (int i = 0; i < n; i++) {
+      Preconditions.checkArgument(weights[i] >= 0, "Weights must be non-negative");
+      scaled[i] = weights[i] * n / sum;
+      if (scaled[i] < 1) {
+        small[smallCount++] = i;
+      } else {
+        large[largeCount++] = i;
+      }
+    }
+    while (smallCount > 0 && largeCount > 0) {
+      int less = small[--smallCount];
+      int more = large[--largeCount];
+      probabilities[less] = scaled[less];
+      aliases[less] = more;
+      scaled[more] = (scaled[more] + scaled[less]) - 1;
+      if (scaled[more] < 1) {
+        small[smallCount++] = more;
+      } else {
+        large[largeCount++] = more;
+      }
+    }
+    // Whatever remains is within rounding error of 1
+    while (largeCount > 0) {
+      int i = large[--largeCount];
+      probabilities[i] = 1;
+      aliases[i] = i;
+    }
+    while (smallCount > 0) {
+      int i = small[--smallCount];
+      probabilities[i] = 1;
+      aliases[i] = i;
+    }
+  }
+
+  /**
+   * @return the number of weights, and so the exclusive upper bound of the sampled indices
+   */
+  public int size() {
+    return probabilities.length;
+  }
+
+  /**
+   * Returns a random index, chosen with probability proportional to its weight.
+   *
+   * @param random the source of randomness
+   * @return an index between 0 (inclusive) and {@link #size()} (exclusive)
+   */
+  public int next(Random random) {
+    // Use the integer part of one variate to pick a column and its fraction to pick within it
+    double u = random.nextDouble() * probabilities.length;
+    int i = (int) u;
+    if (i >= probabilities.length) {
+      i = probabilities.length - 1;
+    }
+    return u - i < probabilities[i] ? i : aliases[i];
+  }
+
+  /**
+   * @return the sum of the given weights
+   */
+  public static double sum(double[] weights) {
+    double sum = 0;
+    for (double weight : weights) {
+      sum += weight;
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen.example;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable {@link java.util.Set Set} view of an array of distinct longs, in array order,
+ * for ids already known to be distinct, which need not be hashed into a set.
+ */
+final class LongArraySet extends AbstractSet<Long> {
+
+  private final long[] values;
+
+  /**
+   * @param values distinct values, which must not be modified afterwards
+   */
+  LongArraySet(long[] values) {
+    this.values = values;
+  }
+
+  @Override
+  public int size() {
+    return values.length;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (!(o instanceof Long)) {
+      return false;
+    }
+    long value = (Long) o;
+    for (long v : values) {
+      if (v == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public Iterator<Long> iterator() {
+    return new Iterator<Long>() {
+      private int next;
+
+      @Override
+      public boolean hasNext() {
+        return next < values.length;
+      }
+
+      @Override
+      public Long next() {
+        if (next == values.length) {
+          throw new NoSuchElementException();
+        }
+        return values[next++];
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
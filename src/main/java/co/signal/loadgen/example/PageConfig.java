@@ -1,50 +0,0 @@
-/*
- * Copyright 2014 Signal.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package co.signal.loadgen.example;
-
-import java.util.Set;
-
-import com.google.common.base.Objects;
-
-/**
-* @author codyaray
-* @since 6/30/14
-*/
-class PageConfig {
-  private final double weight;
-  private final Set<Long> tags;
-
-  public PageConfig(double weight, Set<Long> tags) {
-    this.weight = weight;
-    this.tags = tags;
-  }
-
-  public double getWeight() {
-    return weight;
-  }
-
-  public Set<Long> getTags() {
-    return tags;
-  }
-
-  @Override
-  public String toString() {
-    return Objects.toStringHelper(this)
-        .add("weight", weight)
-        .add("tags", tags)
-        .toString();
-  }
-}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.google.common.primitives.Ints;
+
+/**
+ * Precompiled pages of a site in a {@link TagserveDescription} which samples the matching pages of a request in
+ * time proportional to the number of pages matched rather than the number of pages on the site.
+ *
+ * Each page is matched independently with probability equal to its weight. Pages are grouped
+ * into buckets whose weights lie within a factor of two of each other. Within a bucket we skip
+ * ahead by a geometric variate for the bucket's maximum weight, and then accept each candidate
+ * with probability {@code weight / maximum}, which is at least one half.
+ *
+ * Sites with more than {@value #MAX_KEYED_PAGES} pages match too many combinations of pages to
+ * memoize their tags, so instead each of their tags is numbered among the site's distinct tags,
+ * and the tags of a request are deduplicated with a bitset of those numbers by {@link #unionTags}.
+ */
+class PageModel {
+
+  /**
+   * Buckets beyond this are merged, trading rejections for the weights below 2^-62.
+   */
+  private static final int MAX_BUCKET = 62;
+
+  /**
+   * The most pages a site may have for its matched pages to be keyed as a bitset of two longs.
+   */
+  static final int MAX_KEYED_PAGES = 128;
+
+  private final TagserveDescription description;
+  private final int firstPage;
+  private final int pageCount;
+  private final int firstTag;
+  private final int[] tagOrdinals;
+  private final int distinctTags;
+  private final int[] certain;
+  private final Bucket[] buckets;
+
+  /**
+   * @param description the description holding the site's pages
+   * @param site the index of the site in the description
+   */
+  PageModel(TagserveDescription description, int site) {
+    this.description = description;
+    this.firstPage = description.getFirstPage(site);
+    this.pageCount = description.getPageEnd(site) - firstPage;
+
+    List<Integer> certainPages = new ArrayList<Integer>();
+    SortedMap<Integer, List<Integer>> bucketPages = new TreeMap<Integer, List<Integer>>();
+    for (int i = 0; i < pageCount; i++) {
+      double weight = getPageWeight(i);
+      if (weight >= 1) {
+        certainPages.add(i);
+      } else if (weight > 0) {
+        int bucket = Math.min(-(Math.getExponent(weight) + 1), MAX_BUCKET);
+        List<Integer> members = bucketPages.get(bucket);
+        if (members == null) {
+          members = new ArrayList<Integer>();
+          bucketPages.put(bucket, members);
+        }
+        members.add(i);
+      }
+    }
+
+    certain = Ints.toArray(certainPages);
+    buckets = new Bucket[bucketPages.size()];
+    int b = 0;
+    for (Map.Entry<Integer, List<Integer>> entry : bucketPages.entrySet()) {
+      buckets[b++] = new Bucket(Math.scalb(1.0, -entry.getKey()), Ints.toArray(entry.getValue()));
+    }
+
+    if (pageCount > MAX_KEYED_PAGES) {
+      firstTag = getFirstTag(0);
+      tagOrdinals = new int[getTagEnd(pageCount - 1) - firstTag];
+      Map<Long, Integer> ordinals = new HashMap<Long, Integer>();
+      for (int i = 0; i < tagOrdinals.length; i++) {
+        Long tag = description.getTag(firstTag + i);
+        Integer ordinal = ordinals.get(tag);
+        if (ordinal == null) {
+          ordinal = ordinals.size();
+          ordinals.put(tag, ordinal);
+        }
+        tagOrdinals[i] = ordinal;
+      }
+      distinctTags = ordinals.size();
+    } else {
+      firstTag = 0;
+      tagOrdinals = null;
+      distinctTags = 0;
+    }
+  }
+
+  /**
+   * @return the number of pages on the site
+   */
+  int getPageCount() {
+    return pageCount;
+  }
+
+  /**
+   * @return the id of the page at the given index
+   */
+  long getPageId(int page) {
+    return description.getPageId(firstPage + page);
+  }
+
+  /**
+   * @return the index in the description of the first tag of the page at the given index
+   */
+  int getFirstTag(int page) {
+    return description.getFirstTag(firstPage + page);
+  }
+
+  /**
+   * @return the index in the description after the last tag of the page at the given index
+   */
+  int getTagEnd(int page) {
+    return description.getTagEnd(firstPage + page);
+  }
+
+  /**
+   * Returns the effective number of distinct combinations of pages matched by the site's requests:
+   * the inverse of the probability that two requests match exactly the same pages.
+   */
+  double getEffectivePageSets() {
+    double repeat = 1;
+    for (int i = 0; i < pageCount; i++) {
+      double weight = Math.min(1, getPageWeight(i));
+      repeat *= weight * weight + (1 - weight) * (1 - weight);
+    }
+    return 1 / repeat;
+  }
+
+  /**
+   * @return the number of longs needed for the bitset of {@link #unionTags}
+   */
+  int getUnionWords() {
+    return (distinctTags + 63) >>> 6;
+  }
+
+  /**
+   * Returns the distinct tags of the given pages in order of first appearance, deduplicated with a
+   * bitset over the site's distinct tags rather than by hashing. Only sites with more than
+   * {@value #MAX_KEYED_PAGES} pages number their tags for this.
+   *
+   * @param pages the matched page indices
+   * @param seen a clear bitset of at least {@link #getUnionWords()} longs, which is cleared again
+   * @return the distinct tags
+   */
+  long[] unionTags(int[] pages, long[] seen) {
+    int total = 0;
+    for (int page : pages) {
+      total += getTagEnd(page) - getFirstTag(page);
+    }
+    long[] tags = new long[total];
+    int count = 0;
+    for (int page : pages) {
+      for (int tag = getFirstTag(page); tag < getTagEnd(page); tag++) {
+        int ordinal = tagOrdinals[tag - firstTag];
+        long bit = 1L << ordinal;
+        if ((seen[ordinal >>> 6] & bit) == 0) {
+          seen[ordinal >>> 6] |= bit;
+          tags[count++] = description.getTag(tag);
+        }
+      }
+    }
+    for (int page : pages) {
+      for (int tag = getFirstTag(page); tag < getTagEnd(page); tag++) {
+        seen[tagOrdinals[tag - firstTag] >>> 6] = 0;
+      }
+    }
+    return count == total ? tags : Arrays.copyOf(tags, count);
+  }
+
+  private double getPageWeight(int page) {
+    return description.getPageWeight(firstPage + page);
+  }
+
+  /**
+   * Returns the indices of the pages matched by a single request, in the site's page order.
+   *
+   * @param random the source of randomness
+   * @return the matched page indices in ascending order
+   */
+  int[] nextPages(Random random) {
+    int[] selected = Arrays.copyOf(certain, Math.max(certain.length, 8));
+    int count = certain.length;
+    for (Bucket bucket : buckets) {
+      int[] members = bucket.pages;
+      for (int j = bucket.skip(random); j < members.length; j += 1 + bucket.skip(random)) {
+        if (random.nextDouble() < bucket.acceptance(j)) {
+          if (count == selected.length) {
+            selected = Arrays.copyOf(selected, count * 2);
+          }
+          selected[count++] = members[j];
+        }
+      }
+    }
+    Arrays.sort(selected, 0, count);
+    return Arrays.copyOf(selected, count);
+  }
+
+  private class Bucket {
+    private final int[] pages;
+    private final double maxWeight;
+    private final double logMiss;
+
+    Bucket(double maxWeight, int[] pages) {
+      this.pages = pages;
+      this.maxWeight = maxWeight;
+      this.logMiss = Math.log1p(-maxWeight);
+    }
+
+    /**
+     * @return the probability of accepting the candidate at the given position in the bucket
+     */
+    double acceptance(int j) {
+      return getPageWeight(pages[j]) / maxWeight;
+    }
+
+    /**
+     * @return the number of pages to skip before the next candidate
+     */
+    int skip(Random random) {
+      if (logMiss == Double.NEGATIVE_INFINITY) {
+        return 0;
+      }
+      double skip = Math.floor(Math.log1p(-random.nextDouble()) / logMiss);
+      return skip < pages.length ? (int) skip : pages.length;
+    }
+  }
+}
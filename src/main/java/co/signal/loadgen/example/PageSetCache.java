@@ -0,0 +1,214 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen.example;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A bounded cache of the page and tag ids of each combination of matched pages, shared by every
+ * thread, for sites with at most {@link PageModel#MAX_KEYED_PAGES} pages. Each combination is keyed
+ * by its site and a bitset of its page indices.
+ *
+ * The cache is direct-mapped: each key hashes to a single slot, and caching a combination evicts
+ * whichever combination held its slot. Lookups therefore take no locks and allocate nothing, which
+ * a cache recording its access order for LRU eviction cannot match, and a miss costs little more
+ * than not caching at all. Entries are immutable, with only final fields, so they are safely
+ * published through the slots without synchronization. Each thread counts its hits, misses and
+ * evictions in its own {@link Counters}, which are summed when the statistics are read.
+ */
+class PageSetCache {
+
+  private final PageSet[] slots;
+  private final int mask;
+  private final List<Counters> counters = new ArrayList<Counters>();
+
+  /**
+   * @param capacity the number of slots, rounded up to a power of two
+   */
+  PageSetCache(int capacity) {
+    Preconditions.checkArgument(capacity > 0 && capacity <= 1 << 30, "Page set cache capacity must be in (0, 2^30]");
+    int size = Integer.highestOneBit(capacity);
+    slots = new PageSet[size < capacity ? size << 1 : size];
+    mask = slots.length - 1;
+  }
+
+  /**
+   * @return the number of slots
+   */
+  int getCapacity() {
+    return slots.length;
+  }
+
+  /**
+   * @return new counters for the calling thread's lookups
+   */
+  Counters newCounters() {
+    Counters threadCounters = new Counters();
+    synchronized (counters) {
+      counters.add(threadCounters);
+    }
+    return threadCounters;
+  }
+
+  /**
+   * @param pages the matched page indices, each less than {@link PageModel#MAX_KEYED_PAGES}
+   * @return the cached ids of the site's matched pages, or {@code null} if they are not cached
+   */
+  @Nullable PageSet get(int site, int[] pages, Counters threadCounters) {
+    long low = bits(pages, 0);
+    long high = bits(pages, 64);
+    PageSet pageSet = slots[slot(site, low, high)];
+    if (pageSet != null && pageSet.site == site && pageSet.low == low && pageSet.high == high) {
+      threadCounters.hits++;
+      return pageSet;
+    }
+    threadCounters.misses++;
+    return null;
+  }
+
+  /**
+   * Cache the ids of the site's matched pages, evicting any other combination in their slot.
+   *
+   * @return the cached ids
+   */
+  PageSet put(int site, int[] pages, ImmutableSet<Long> pageIds, ImmutableSet<Long> tagIds, Counters threadCounters) {
+    PageSet pageSet = new PageSet(site, bits(pages, 0), bits(pages, 64), pageIds, tagIds);
+    int slot = slot(site, pageSet.low, pageSet.high);
+    if (slots[slot] != null) {
+      threadCounters.evictions++;
+    }
+    slots[slot] = pageSet;
+    return pageSet;
+  }
+
+  private int slot(int site, long low, long high) {
+    return (int) mix(mix(mix(site) ^ low) ^ high) & mask;
+  }
+
+  /**
+   * @return the value with its bits mixed, by the finalizer of MurmurHash3
+   */
+  private static long mix(long z) {
+    z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+    z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return z ^ (z >>> 33);
+  }
+
+  /**
+   * @return the bitset of the pages in {@code [offset, offset + 64)}
+   */
+  private static long bits(int[] pages, int offset) {
+    long bits = 0;
+    for (int page : pages) {
+      if (page >= offset && page < offset + 64) {
+        bits |= 1L << page;
+      }
+    }
+    return bits;
+  }
+
+  /**
+   * @return the number of lookups which found their combination cached
+   */
+  long getHits() {
+    long hits = 0;
+    synchronized (counters) {
+      for (Counters threadCounters : counters) {
+        hits += threadCounters.hits;
+      }
+    }
+    return hits;
+  }
+
+  /**
+   * @return the number of lookups which did not find their combination cached
+   */
+  long getMisses() {
+    long misses = 0;
+    synchronized (counters) {
+      for (Counters threadCounters : counters) {
+        misses += threadCounters.misses;
+      }
+    }
+    return misses;
+  }
+
+  /**
+   * @return the number of combinations evicted by another
+   */
+  long getEvictions() {
+    long evictions = 0;
+    synchronized (counters) {
+      for (Counters threadCounters : counters) {
+        evictions += threadCounters.evictions;
+      }
+    }
+    return evictions;
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("slots", slots.length)
+        .add("hits", getHits())
+        .add("misses", getMisses())
+        .add("evictions", getEvictions())
+        .toString();
+  }
+
+  /**
+   * One thread's cache statistics, which only that thread updates.
+   */
+  static class Counters {
+    private long hits;
+    private long misses;
+    private long evictions;
+  }
+
+  /**
+   * The page and tag ids of a combination of matched pages, shared by every message matching it.
+   */
+  static class PageSet {
+    private final int site;
+    private final long low;
+    private final long high;
+    private final ImmutableSet<Long> pageIds;
+    private final ImmutableSet<Long> tagIds;
+
+    PageSet(int site, long low, long high, ImmutableSet<Long> pageIds, ImmutableSet<Long> tagIds) {
+      this.site = site;
+      this.low = low;
+      this.high = high;
+      this.pageIds = pageIds;
+      this.tagIds = tagIds;
+    }
+
+    ImmutableSet<Long> getPageIds() {
+      return pageIds;
+    }
+
+    ImmutableSet<Long> getTagIds() {
+      return tagIds;
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen.example;
+
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+import co.signal.loadgen.MessageBuffer;
+import co.signal.loadgen.MessageMarshaller;
+
+/**
+ * Example message marshaller which writes {@link TagRequestMetrics} in the Avro binary encoding
+ * of {@link #SCHEMA}. Like any Avro datum, the message carries no field names or tags; readers
+ * need the schema to decode it.
+ *
+ * @see "http://avro.apache.org/docs/current/spec.html#binary_encoding"
+ */
+public class TagRequestMetricsAvroMarshaller implements MessageMarshaller<TagRequestMetrics> {
+
+  /**
+   * The Avro schema of the marshalled messages.
+   */
+  public static final String SCHEMA = "{\"type\":\"record\",\"name\":\"TagRequestMetrics\","
+      + "\"namespace\":\"co.signal.loadgen.example\",\"fields\":["
+      + "{\"name\":\"siteId\",\"type\":\"string\"},"
+      + "{\"name\":\"timestamp\",\"type\":\"long\"},"
+      + "{\"name\":\"pageIds\",\"type\":{\"type\":\"array\",\"items\":\"long\"}},"
+      + "{\"name\":\"tagIds\",\"type\":{\"type\":\"array\",\"items\":\"long\"}}]}";
+
+  @Override
+  public Class<TagRequestMetrics> getModelType() {
+    return TagRequestMetrics.class;
+  }
+
+  @Override
+  public byte[] marshal(TagRequestMetrics metrics) {
+    Preconditions.checkNotNull(metrics.getSiteId(), "siteId is required by the Avro schema");
+    MessageBuffer buffer = MessageBuffer.forCurrentThread();
+    byte[] siteId = metrics.getSiteId().getBytes(Charsets.UTF_8);
+    buffer.writeZigZag(siteId.length);
+    buffer.write(siteId);
+    buffer.writeZigZag(metrics.getTimestamp());
+    writeArray(buffer, metrics.getPageIds());
+    writeArray(buffer, metrics.getTagIds());
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Writes the values as a single block followed by the empty block which ends the array.
+   */
+  private static void writeArray(MessageBuffer buffer, Set<Long> values) {
+    if (values != null && !values.isEmpty()) {
+      buffer.writeZigZag(values.size());
+      for (long value : values) {
+        buffer.writeZigZag(value);
+      }
+    }
+    buffer.writeZigZag(0);
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen.example;
+
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+
+import co.signal.loadgen.MessageBuffer;
+import co.signal.loadgen.MessageMarshaller;
+
+/**
+ * Example message encoder which writes {@link TagRequestMetrics} as UTF-8 JSON without reflection.
+ *
+ * The output is byte-for-byte identical to {@link TagRequestMetricsJsonMarshaller} with a default
+ * {@link Gson}, including its HTML-safe string escaping and omission of null fields. Each message
+ * is written into a reusable per-thread {@link MessageBuffer}, with numbers formatted directly as
+ * ASCII digits, so the only allocation per message is the returned array.
+ */
+public class TagRequestMetricsJsonEncoder implements MessageMarshaller<TagRequestMetrics> {
+
+  private static final byte[] SITE_ID = ascii("\"siteId\":");
+  private static final byte[] TIMESTAMP = ascii("\"timestamp\":");
+  private static final byte[] PAGE_IDS = ascii("\"pageIds\":");
+  private static final byte[] TAG_IDS = ascii("\"tagIds\":");
+  private static final byte[] NULL = ascii("null");
+  private static final byte[] HEX = ascii("0123456789abcdef");
+
+  /**
+   * Escape sequences for ASCII characters, matching Gson's HTML-safe {@code JsonWriter}.
+   */
+  private static final byte[][] ESCAPES = new byte[128][];
+  static {
+    for (int c = 0; c < 0x20; c++) {
+      ESCAPES[c] = unicodeEscape(c);
+    }
+    ESCAPES['"'] = ascii("\\\"");
+    ESCAPES['\\'] = ascii("\\\\");
+    ESCAPES['\t'] = ascii("\\t");
+    ESCAPES['\b'] = ascii("\\b");
+    ESCAPES['\n'] = ascii("\\n");
+    ESCAPES['\r'] = ascii("\\r");
+    ESCAPES['\f'] = ascii("\\f");
+    for (char c : new char[] { '<', '>', '&', '=', '\'' }) {
+      ESCAPES[c] = unicodeEscape(c);
+    }
+  }
+
+  @Override
+  public Class<TagRequestMetrics> getModelType() {
+    return TagRequestMetrics.class;
+  }
+
+  /**
+   * @return the JSON encoding of {@code metrics} as UTF-8 bytes
+   */
+  @Override
+  public byte[] marshal(TagRequestMetrics metrics) {
+    MessageBuffer buffer = MessageBuffer.forCurrentThread();
+    write(buffer, metrics);
+    return buffer.toByteArray();
+  }
+
+  private static void write(MessageBuffer buffer, TagRequestMetrics metrics) {
+    buffer.write('{');
+    if (metrics.getSiteId() != null) {
+      buffer.write(SITE_ID);
+      writeString(buffer, metrics.getSiteId());
+      buffer.write(',');
+    }
+    buffer.write(TIMESTAMP);
+    buffer.writeDecimal(metrics.getTimestamp());
+    if (metrics.getPageIds() != null) {
+      buffer.write(',');
+      buffer.write(PAGE_IDS);
+      writeLongs(buffer, metrics.getPageIds());
+    }
+    if (metrics.getTagIds() != null) {
+      buffer.write(',');
+      buffer.write(TAG_IDS);
+      writeLongs(buffer, metrics.getTagIds());
+    }
+    buffer.write('}');
+  }
+
+  private static void writeLongs(MessageBuffer buffer, Set<Long> values) {
+    buffer.write('[');
+    boolean first = true;
+    for (Long value : values) {
+      if (!first) {
+        buffer.write(',');
+      }
+      if (value == null) {
+        buffer.write(NULL);
+      } else {
+        buffer.writeDecimal(value);
+      }
+      first = false;
+    }
+    buffer.write(']');
+  }
+
+  private static void writeString(MessageBuffer buffer, String value) {
+    buffer.write('"');
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        byte[] escape = ESCAPES[c];
+        if (escape == null) {
+          buffer.write(c);
+        } else {
+          buffer.write(escape);
+        }
+      } else if (c < 0x800) {
+        buffer.write(0xc0 | (c >> 6));
+        buffer.write(0x80 | (c & 0x3f));
+      } else if (c == '\u2028' || c == '\u2029') {
+        buffer.write(unicodeEscape(c));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buffer.write(0xf0 | (codePoint >> 18));
+        buffer.write(0x80 | ((codePoint >> 12) & 0x3f));
+        buffer.write(0x80 | ((codePoint >> 6) & 0x3f));
+        buffer.write(0x80 | (codePoint & 0x3f));
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        // Unpaired surrogates are replaced, as by String.getBytes
+        buffer.write('?');
+      } else {
+        buffer.write(0xe0 | (c >> 12));
+        buffer.write(0x80 | ((c >> 6) & 0x3f));
+        buffer.write(0x80 | (c & 0x3f));
+      }
+    }
+    buffer.write('"');
+  }
+
+  private static byte[] unicodeEscape(int c) {
+    return new byte[] { '\\', 'u', HEX[(c >> 12) & 0xf], HEX[(c >> 8) & 0xf], HEX[(c >> 4) & 0xf], HEX[c & 0xf] };
+  }
+
+  private static byte[] ascii(String value) {
+    return value.getBytes(Charsets.US_ASCII);
+  }
+}
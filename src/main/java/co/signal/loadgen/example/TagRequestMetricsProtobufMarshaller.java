@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen.example;
+
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+
+import co.signal.loadgen.MessageBuffer;
+import co.signal.loadgen.MessageMarshaller;
+
+/**
+ * Example message marshaller which writes {@link TagRequestMetrics} as a compact, length-prefixed
+ * varint encoding in the Protocol Buffers wire format, readable with the following message type:
+ *
+ * <pre>
+ * message TagRequestMetrics {
+ *   optional string site_id = 1;
+ *   optional int64 timestamp = 2;
+ *   repeated int64 page_ids = 3 [packed = true];
+ *   repeated int64 tag_ids = 4 [packed = true];
+ * }
+ * </pre>
+ */
+public class TagRequestMetricsProtobufMarshaller implements MessageMarshaller<TagRequestMetrics> {
+
+  private static final int WIRE_TYPE_VARINT = 0;
+  private static final int WIRE_TYPE_LENGTH_DELIMITED = 2;
+
+  private static final int SITE_ID = 1;
+  private static final int TIMESTAMP = 2;
+  private static final int PAGE_IDS = 3;
+  private static final int TAG_IDS = 4;
+
+  @Override
+  public Class<TagRequestMetrics> getModelType() {
+    return TagRequestMetrics.class;
+  }
+
+  @Override
+  public byte[] marshal(TagRequestMetrics metrics) {
+    MessageBuffer buffer = MessageBuffer.forCurrentThread();
+    if (metrics.getSiteId() != null) {
+      byte[] siteId = metrics.getSiteId().getBytes(Charsets.UTF_8);
+      writeTag(buffer, SITE_ID, WIRE_TYPE_LENGTH_DELIMITED);
+      buffer.writeVarint(siteId.length);
+      buffer.write(siteId);
+    }
+    writeTag(buffer, TIMESTAMP, WIRE_TYPE_VARINT);
+    buffer.writeVarint(metrics.getTimestamp());
+    writePacked(buffer, PAGE_IDS, metrics.getPageIds());
+    writePacked(buffer, TAG_IDS, metrics.getTagIds());
+    return buffer.toByteArray();
+  }
+
+  private static void writeTag(MessageBuffer buffer, int field, int wireType) {
+    buffer.writeVarint((field << 3) | wireType);
+  }
+
+  private static void writePacked(MessageBuffer buffer, int field, Set<Long> values) {
+    if (values == null || values.isEmpty()) {
+      return;
+    }
+    int size = 0;
+    for (long value : values) {
+      size += MessageBuffer.varintSize(value);
+    }
+    writeTag(buffer, field, WIRE_TYPE_LENGTH_DELIMITED);
+    buffer.writeVarint(size);
+    for (long value : values) {
+      buffer.writeVarint(value);
+    }
+  }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen.example;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import org.apache.jmeter.util.JMeterUtils;
+
+import co.signal.loadgen.MappedFiles;
+
+/**
+ * A Synthetic Tagserve Load Description held in columns of primitives rather than an object graph.
+ *
+ * The pages of every site are stored consecutively, in compressed sparse row form: each site has
+ * the offset of its first page, each page has its id, its weight and the offset of its first tag,
+ * and the tags of every page are stored consecutively in one column. Site ids are interned. Setting
+ * the {@value #OFF_HEAP_PROPERTY} JMeter or system property to {@code true} keeps the columns
+ * off the heap, so that very large descriptions do not pressure the garbage collector; binary
+ * descriptions are then used in place in the memory-mapped file.
+ *
+ * Descriptions are either streamed from JSON, without ever holding the whole text, or read from a
+ * precompiled binary format of the same columns with no parsing at all. Run this class with a
+ * JSON description and an output file to compile it:
+ *
+ * <pre>java -cp kafkameter-x.y.z.jar co.signal.loadgen.example.TagserveDescription in.json out.bin</pre>
+ *
+ * The binary format is a big-endian header of {@link #MAGIC}, {@link #VERSION} and the counts of
+ * sites, pages and tags, followed by each site's length-prefixed UTF-8 id, then the columns of
+ * site weights, site page offsets, page ids, page weights, page tag offsets and tags.
+ */
+class TagserveDescription {
+
+  /**
+   * Property for keeping descriptions off the heap, e.g. {@code -Jkafkameter.tagserve.offheap=true}.
+   */
+  static final String OFF_HEAP_PROPERTY = "kafkameter.tagserve.offheap";
+
+  /**
+   * The first four bytes of a binary description, "KMTD".
+   */
+  static final int MAGIC = 0x4B4D5444;
+
+  static final int VERSION = 1;
+
+  private final String[] siteIds;
+  private final DoubleBuffer siteWeights;
+  private final IntBuffer sitePageOffsets;
+  private final LongBuffer pageIds;
+  private final DoubleBuffer pageWeights;
+  private final IntBuffer pageTagOffsets;
+  private final LongBuffer tags;
+
+  private TagserveDescription(String[] siteIds, DoubleBuffer siteWeights, IntBuffer sitePageOffsets,
+      LongBuffer pageIds, DoubleBuffer pageWeights, IntBuffer pageTagOffsets, LongBuffer tags) {
+    this.siteIds = siteIds;
+    this.siteWeights = siteWeights;
+    this.sitePageOffsets = sitePageOffsets;
+    this.pageIds = pageIds;
+    this.pageWeights = pageWeights;
+    this.pageTagOffsets = pageTagOffsets;
+    this.tags = tags;
+  }
+
+  int getSiteCount() {
+    return siteIds.length;
+  }
+
+  String getSiteId(int site) {
+    return siteIds[site];
+  }
+
+  double getSiteWeight(int site) {
+    return siteWeights.get(site);
+  }
+
+  /**
+   * @return the index of the site's first page
+   */
+  int getFirstPage(int site) {
+    return sitePageOffsets.get(site);
+  }
+
+  /**
+   * @return the index after the site's last page
+   */
+  int getPageEnd(int site) {
+    return sitePageOffsets.get(site + 1);
+  }
+
+  long getPageId(int page) {
+    return pageIds.get(page);
+  }
+
+  double getPageWeight(int page) {
+    return pageWeights.get(page);
+  }
+
+  /**
+   * @return the index of the page's first tag
+   */
+  int getFirstTag(int page) {
+    return pageTagOffsets.get(page);
+  }
+
+  /**
+   * @return the index after the page's last tag
+   */
+  int getTagEnd(int page) {
+    return pageTagOffsets.get(page + 1);
+  }
+
+  long getTag(int tag) {
+    return tags.get(tag);
+  }
+
+  /**
+   * @return whether descriptions are kept off the heap
+   */
+  static boolean isOffHeap() {
+    return Boolean.parseBoolean(JMeterUtils.getPropDefault(OFF_HEAP_PROPERTY, System.getProperty(OFF_HEAP_PROPERTY)));
+  }
+
+  /**
+   * Read a description from a file in either the binary or the JSON format.
+   */
+  static TagserveDescription read(File file) throws IOException {
+    if (isBinary(file)) {
+      return readBinary(file);
+    }
+    Reader reader = MappedFiles.openUtf8(file);
+    try {
+      return parseJson(reader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Stream a description from JSON, in the format documented in the project README.
+   */
+  static TagserveDescription parseJson(Reader reader) throws IOException {
+    JsonReader json = new JsonReader(reader);
+    List<String> siteIds = new ArrayList<String>();
+    Set<String> seenSiteIds = new HashSet<String>();
+    Columns columns = new Columns();
+
+    json.beginObject();
+    while (json.hasNext()) {
+      String siteId = json.nextName().intern();
+      if (!seenSiteIds.add(siteId)) {
+        throw new IOException("Duplicate site id " + siteId);
+      }
+      double weight = 0;
+      json.beginObject();
+      while (json.hasNext()) {
+        String name = json.nextName();
+        if ("weight".equals(name)) {
+          weight = json.nextDouble();
+        } else if ("pages".equals(name) && json.peek() != JsonToken.NULL) {
+          parsePages(json, columns);
+        } else {
+          json.skipValue();
+        }
+      }
+      json.endObject();
+      siteIds.add(siteId);
+      columns.endSite(weight);
+    }
+    json.endObject();
+
+    return columns.toDescription(siteIds.toArray(new String[siteIds.size()]), isOffHeap());
+  }
+
+  private static void parsePages(JsonReader json, Columns columns) throws IOException {
+    json.beginObject();
+    while (json.hasNext()) {
+      long pageId = Long.parseLong(json.nextName());
+      double weight = 0;
+      json.beginObject();
+      while (json.hasNext()) {
+        String name = json.nextName();
+        if ("weight".equals(name)) {
+          weight = json.nextDouble();
+        } else if ("tags".equals(name) && json.peek() != JsonToken.NULL) {
+          json.beginArray();
+          while (json.hasNext()) {
+            columns.addTag(json.nextLong());
+          }
+          json.endArray();
+        } else {
+          json.skipValue();
+        }
+      }
+      json.endObject();
+      columns.endPage(pageId, weight);
+    }
+    json.endObject();
+  }
+
+  /**
+   * Write this description in the binary format.
+   */
+  void writeBinary(File file) throws IOException {
+    int pageCount = pageIds.limit();
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(siteIds.length);
+      out.writeInt(pageCount);
+      out.writeInt(tags.limit());
+      for (String siteId : siteIds) {
+        byte[] bytes = siteId.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      for (int site = 0; site < siteIds.length; site++) {
+        out.writeDouble(siteWeights.get(site));
+      }
+      for (int site = 0; site <= siteIds.length; site++) {
+        out.writeInt(sitePageOffsets.get(site));
+      }
+      for (int page = 0; page < pageCount; page++) {
+        out.writeLong(pageIds.get(page));
+      }
+      for (int page = 0; page < pageCount; page++) {
+        out.writeDouble(pageWeights.get(page));
+      }
+      for (int page = 0; page <= pageCount; page++) {
+        out.writeInt(pageTagOffsets.get(page));
+      }
+      for (int tag = 0; tag < tags.limit(); tag++) {
+        out.writeLong(tags.get(tag));
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Read a description in the binary format. Off the heap the columns are views of the mapped
+   * file, and otherwise each column is bulk-copied out of it.
+   */
+  static TagserveDescription readBinary(File file) throws IOException {
+    ByteBuffer buffer = MappedFiles.map(file);
+    if (buffer.remaining() < 20 || buffer.getInt() != MAGIC) {
+      throw new IOException(file + " is not a binary Tagserve Load Description");
+    }
+    int version = buffer.getInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported binary Tagserve Load Description version " + version + " in " + file);
+    }
+    int siteCount = buffer.getInt();
+    int pageCount = buffer.getInt();
+    int tagCount = buffer.getInt();
+
+    String[] siteIds = new String[siteCount];
+    for (int site = 0; site < siteCount; site++) {
+      byte[] bytes = new byte[buffer.getInt()];
+      buffer.get(bytes);
+      siteIds[site] = new String(bytes, Charsets.UTF_8).intern();
+    }
+    boolean offHeap = isOffHeap();
+    DoubleBuffer siteWeights = doubles(buffer, siteCount, offHeap);
+    IntBuffer sitePageOffsets = ints(buffer, siteCount + 1, offHeap);
+    LongBuffer pageIds = longs(buffer, pageCount, offHeap);
+    DoubleBuffer pageWeights = doubles(buffer, pageCount, offHeap);
+    IntBuffer pageTagOffsets = ints(buffer, pageCount + 1, offHeap);
+    LongBuffer tags = longs(buffer, tagCount, offHeap);
+    return new TagserveDescription(siteIds, siteWeights, sitePageOffsets, pageIds, pageWeights, pageTagOffsets, tags);
+  }
+
+  /**
+   * @return the next {@code count} doubles of the buffer, as a view or copied onto the heap
+   */
+  private static DoubleBuffer doubles(ByteBuffer buffer, int count, boolean view) {
+    DoubleBuffer column = slice(buffer, count * 8).asDoubleBuffer();
+    if (view) {
+      return column;
+    }
+    double[] values = new double[count];
+    column.get(values);
+    return DoubleBuffer.wrap(values);
+  }
+
+  /**
+   * @return the next {@code count} ints of the buffer, as a view or copied onto the heap
+   */
+  private static IntBuffer ints(ByteBuffer buffer, int count, boolean view) {
+    IntBuffer column = slice(buffer, count * 4).asIntBuffer();
+    if (view) {
+      return column;
+    }
+    int[] values = new int[count];
+    column.get(values);
+    return IntBuffer.wrap(values);
+  }
+
+  /**
+   * @return the next {@code count} longs of the buffer, as a view or copied onto the heap
+   */
+  private static LongBuffer longs(ByteBuffer buffer, int count, boolean view) {
+    LongBuffer column = slice(buffer, count * 8).asLongBuffer();
+    if (view) {
+      return column;
+    }
+    long[] values = new long[count];
+    column.get(values);
+    return LongBuffer.wrap(values);
+  }
+
+  /**
+   * @return the next {@code bytes} bytes of the buffer, advancing past them
+   */
+  private static ByteBuffer slice(ByteBuffer buffer, int bytes) {
+    ByteBuffer slice = buffer.slice();
+    slice.limit(bytes);
+    buffer.position(buffer.position() + bytes);
+    return slice;
+  }
+
+  private static boolean isBinary(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      return file.length() >= 4 && in.readInt() == MAGIC;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Compile a JSON description into the binary format.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: TagserveDescription <description.json> <description.bin>");
+      System.exit(1);
+    }
+    long start = System.currentTimeMillis();
+    TagserveDescription description = read(new File(args[0]));
+    description.writeBinary(new File(args[1]));
+    System.out.println("Compiled " + description.getSiteCount() + " sites in "
+        + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  /**
+   * The growing columns of a description being parsed.
+   */
+  private static class Columns {
+    private double[] siteWeights = new double[16];
+    private int[] sitePageOffsets = new int[17];
+    private long[] pageIds = new long[16];
+    private double[] pageWeights = new double[16];
+    private int[] pageTagOffsets = new int[17];
+    private long[] tags = new long[16];
+    private int siteCount;
+    private int pageCount;
+    private int tagCount;
+
+    void addTag(long tag) {
+      if (tagCount == tags.length) {
+        tags = Arrays.copyOf(tags, tagCount * 2);
+      }
+      tags[tagCount++] = tag;
+    }
+
+    void endPage(long pageId, double weight) {
+      if (pageCount == pageIds.length) {
+        pageIds = Arrays.copyOf(pageIds, pageCount * 2);
+        pageWeights = Arrays.copyOf(pageWeights, pageCount * 2);
+        pageTagOffsets = Arrays.copyOf(pageTagOffsets, pageCount * 2 + 1);
+      }
+      pageIds[pageCount] = pageId;
+      pageWeights[pageCount] = weight;
+      pageTagOffsets[++pageCount] = tagCount;
+    }
+
+    void endSite(double weight) {
+      if (siteCount == siteWeights.length) {
+        siteWeights = Arrays.copyOf(siteWeights, siteCount * 2);
+        sitePageOffsets = Arrays.copyOf(sitePageOffsets, siteCount * 2 + 1);
+      }
+      siteWeights[siteCount] = weight;
+      sitePageOffsets[++siteCount] = pageCount;
+    }
+
+    TagserveDescription toDescription(String[] siteIds, boolean offHeap) {
+      return new TagserveDescription(siteIds,
+          doubles(siteWeights, siteCount, offHeap),
+          ints(sitePageOffsets, siteCount + 1, offHeap),
+          longs(pageIds, pageCount, offHeap),
+          doubles(pageWeights, pageCount, offHeap),
+          ints(pageTagOffsets, pageCount + 1, offHeap),
+          longs(tags, tagCount, offHeap));
+    }
+
+    private static DoubleBuffer doubles(double[] values, int count, boolean offHeap) {
+      if (!offHeap) {
+        return DoubleBuffer.wrap(Arrays.copyOf(values, count));
+      }
+      DoubleBuffer column = direct(count * 8).asDoubleBuffer();
+      column.put(values, 0, count).flip();
+      return column;
+    }
+
+    private static IntBuffer ints(int[] values, int count, boolean offHeap) {
+      if (!offHeap) {
+        return IntBuffer.wrap(Arrays.copyOf(values, count));
+      }
+      IntBuffer column = direct(count * 4).asIntBuffer();
+      column.put(values, 0, count).flip();
+      return column;
+    }
+
+    private static LongBuffer longs(long[] values, int count, boolean offHeap) {
+      if (!offHeap) {
+        return LongBuffer.wrap(Arrays.copyOf(values, count));
+      }
+      LongBuffer column = direct(count * 8).asLongBuffer();
+      column.put(values, 0, count).flip();
+      return column;
+    }
+
+    private static ByteBuffer direct(int bytes) {
+      return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+  }
+}
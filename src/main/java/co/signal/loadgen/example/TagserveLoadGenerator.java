@@ -15,64 +15,225 @@
  */
 package co.signal.loadgen.example;
 
-import java.lang.reflect.Type;
-import java.util.Map;
+import java.io.File;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Random;
-import java.util.Set;
 
 import javax.annotation.Nullable;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.gson.Gson;
-import com.google.gson.JsonParseException;
-import com.google.gson.reflect.TypeToken;
 
+import org.apache.jmeter.util.JMeterUtils;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
 
+import co.signal.loadgen.ByteLoadGenerator;
+import co.signal.loadgen.ModelLoadGenerator;
+import co.signal.loadgen.NodeShard;
+import co.signal.loadgen.RandomStreams;
+import co.signal.loadgen.ShareableLoadGenerator;
 import co.signal.loadgen.SyntheticLoadGenerator;
+import co.signal.loadgen.WeightedSampler;
 
 /**
  * Example {@link SyntheticLoadGenerator} which generates {@link TagRequestMetrics} messages
- * as {@link TagRequestMetricsJsonMarshaller JSON} according to a distribution given by an
+ * as {@link TagRequestMetricsJsonEncoder JSON} according to a distribution given by an
  * example Tagserve Synthetic Load Description. This example Load Description is documented
- * in the project README.
+ * in the project README. The {@link TagRequestMetrics} may instead be marshalled as
+ * {@link TagRequestMetricsProtobufMarshaller Protocol Buffers} or {@link TagRequestMetricsAvroMarshaller Avro}.
+ *
+ * A generator constructed from a description creates its random stream on first use, while each
+ * {@link #share() share} of it creates its own stream on the sharing thread, so that the parsed
+ * description is shared by every thread without disturbing their streams.
+ *
+ * Each site usually matches only a few distinct combinations of pages, so the page and tag ids of
+ * each combination are built once and memoized in a cache shared by every thread, keyed by the
+ * site and a bitset of its matched pages; see {@link PageSetCache}. The cache holds at most
+ * {@value #DEFAULT_PAGE_SET_CACHE_SIZE} combinations by default, and its size may be set with the
+ * {@value #PAGE_SET_CACHE_SIZE_PROPERTY} JMeter or system property; zero disables it. Its hit and
+ * miss statistics are reported by {@link #toString()}. When the sites have many more combinations
+ * than the cache holds, caching them all would only thrash it, so only the sites whose traffic is
+ * concentrated on the fewest combinations are cached, until their combinations would fill half of
+ * it. Sites with more pages than a bitset key holds instead deduplicate their tags with a bitset
+ * as described by {@link PageModel}.
+ *
+ * When several nodes share the load, each node generates messages for its own {@link NodeShard}
+ * of the sites, taken in the order of the description and balanced by their weights, so that
+ * every node sends the same share of the traffic and together they send each site its full share.
  *
  * @author codyaray
  * @since 7/17/2014
  */
-public class TagserveLoadGenerator implements SyntheticLoadGenerator {
+public class TagserveLoadGenerator
+    implements ByteLoadGenerator, ModelLoadGenerator<TagRequestMetrics>, ShareableLoadGenerator {
 
   private static final Logger log = LoggingManager.getLoggerForClass();
 
-  private static final Type SITE_CONFIGS_TYPE = new TypeToken<Map<String, SiteConfig>>() {}.getType();
+  /**
+   * Maximum difference from unity tolerated in the sum of the site weights before normalizing.
+   */
+  private static final double SITE_WEIGHT_TOLERANCE = 1e-6;
+
+  /**
+   * Property for the number of memoized page combinations, e.g. {@code -Jkafkameter.tagserve.pagesets=100000}.
+   */
+  static final String PAGE_SET_CACHE_SIZE_PROPERTY = "kafkameter.tagserve.pagesets";
 
-  private static final Gson gson = new Gson();
-  private static final Random random = new Random();
-  private static final TagRequestMetricsJsonMarshaller marshaller = new TagRequestMetricsJsonMarshaller(gson);
+  static final int DEFAULT_PAGE_SET_CACHE_SIZE = 16384;
 
-  private final Map<String, SiteConfig> configs;
-  private final Map<String, Double> siteWeights;
+  private static final TagRequestMetricsJsonEncoder encoder = new TagRequestMetricsJsonEncoder();
+
+  private Random random;
+  private final TagserveDescription description;
+  private final PageModel[] pageModels;
+  private final NodeShard node;
+  private final WeightedSampler siteSampler;
+  private final @Nullable PageSetCache pageSets;
+  private final @Nullable boolean[] cachedSites;
+  private final @Nullable PageSetCache.Counters pageSetCounters;
+  private long[] seenTags = new long[0];
 
   public TagserveLoadGenerator(@Nullable String config) {
-    configs = parseSiteConfigs(config);
-    siteWeights = parseSiteWeights(configs);
+    this(parseDescription(config));
+  }
+
+  /**
+   * Streams the Load Description from the file rather than reading it into a {@link String},
+   * which also accepts descriptions precompiled by {@link TagserveDescription}.
+   */
+  public TagserveLoadGenerator(File file) {
+    this(readDescription(file));
+  }
+
+  private TagserveLoadGenerator(TagserveDescription description) {
+    this.description = description;
+    double[] siteWeights = new double[description.getSiteCount()];
+    pageModels = new PageModel[siteWeights.length];
+    for (int site = 0; site < siteWeights.length; site++) {
+      siteWeights[site] = description.getSiteWeight(site);
+      pageModels[site] = new PageModel(description, site);
+    }
+    checkSiteWeights(siteWeights);
+    node = NodeShard.current();
+    double[] nodeWeights = node.share(siteWeights);
+    siteSampler = new WeightedSampler(nodeWeights);
+    int cacheSize = getPageSetCacheSize();
+    pageSets = cacheSize <= 0 ? null : new PageSetCache(cacheSize);
+    pageSetCounters = pageSets == null ? null : pageSets.newCounters();
+    cachedSites = pageSets == null ? null : selectCachedSites(nodeWeights, pageSets.getCapacity() / 2);
+  }
+
+  private TagserveLoadGenerator(TagserveLoadGenerator shared) {
+    random = RandomStreams.newThreadStream();
+    description = shared.description;
+    pageModels = shared.pageModels;
+    node = shared.node;
+    siteSampler = shared.siteSampler;
+    pageSets = shared.pageSets;
+    pageSetCounters = pageSets == null ? null : pageSets.newCounters();
+    cachedSites = shared.cachedSites;
+  }
+
+  /**
+   * Choose the sites whose combinations of pages are cached, in decreasing order of their share of
+   * traffic per effective combination, until their effective combinations would exceed the budget.
+   */
+  private boolean[] selectCachedSites(double[] siteWeights, double budget) {
+    final double[] density = new double[siteWeights.length];
+    Integer[] sites = new Integer[siteWeights.length];
+    for (int site = 0; site < sites.length; site++) {
+      sites[site] = site;
+      density[site] = siteWeights[site] / pageModels[site].getEffectivePageSets();
+    }
+    Arrays.sort(sites, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Double.compare(density[b], density[a]);
+      }
+    });
+    boolean[] cached = new boolean[siteWeights.length];
+    double used = 0;
+    for (int site : sites) {
+      double pageSets = pageModels[site].getEffectivePageSets();
+      if (siteWeights[site] > 0 && pageModels[site].getPageCount() <= PageModel.MAX_KEYED_PAGES
+          && used + pageSets <= budget) {
+        cached[site] = true;
+        used += pageSets;
+      }
+    }
+    return cached;
+  }
+
+  /**
+   * Returns a generator with its own random stream for the calling thread, sharing this one's
+   * description and page models.
+   */
+  @Override
+  public TagserveLoadGenerator share() {
+    return new TagserveLoadGenerator(this);
   }
 
   @Override
   public String nextMessage() {
-    return marshaller.marshal(nextMetrics());
+    return new String(nextMessageBytes(), Charsets.UTF_8);
+  }
+
+  @Override
+  public byte[] nextMessageBytes() {
+    return encoder.marshal(nextModel());
+  }
+
+  @Override
+  public Class<TagRequestMetrics> getModelType() {
+    return TagRequestMetrics.class;
   }
 
-  private TagRequestMetrics nextMetrics() {
-    String siteId = nextSiteId();
-    SiteConfig siteConfig = configs.get(siteId);
+  @Override
+  public TagRequestMetrics nextModel() {
+    if (random == null) {
+      random = RandomStreams.newThreadStream();
+    }
+    int site = siteSampler.next(random);
+    String siteId = description.getSiteId(site);
+    PageModel pageModel = pageModels[site];
     long timestamp = nextTimestamp();
-    ImmutableSet<Long> pageIds = nextPages(siteConfig);
-    ImmutableSet<Long> tagIds = nextTags(siteConfig, pageIds);
-    return new TagRequestMetrics(siteId, timestamp, pageIds, tagIds);
+    int[] pages = pageModel.nextPages(random);
+    if (pageModel.getPageCount() > PageModel.MAX_KEYED_PAGES) {
+      return new TagRequestMetrics(siteId, timestamp, new LongArraySet(nextPageIdArray(pageModel, pages)),
+          new LongArraySet(unionTags(pageModel, pages)));
+    }
+    if (pageSets == null || !cachedSites[site]) {
+      return new TagRequestMetrics(siteId, timestamp, nextPageIds(pageModel, pages), nextTags(pageModel, pages));
+    }
+    PageSetCache.PageSet pageSet = pageSets.get(site, pages, pageSetCounters);
+    if (pageSet == null) {
+      pageSet = pageSets.put(site, pages, nextPageIds(pageModel, pages), nextTags(pageModel, pages), pageSetCounters);
+    }
+    return new TagRequestMetrics(siteId, timestamp, pageSet.getPageIds(), pageSet.getTagIds());
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("sites", description.getSiteCount())
+        .add("node", node)
+        .add("cachedSites", countCachedSites())
+        .add("pageSets", pageSets)
+        .toString();
+  }
+
+  private int countCachedSites() {
+    int count = 0;
+    for (int site = 0; cachedSites != null && site < cachedSites.length; site++) {
+      count += cachedSites[site] ? 1 : 0;
+    }
+    return count;
   }
 
   private long nextTimestamp() {
@@ -81,59 +242,65 @@ public class TagserveLoadGenerator implements SyntheticLoadGenerator {
     return System.currentTimeMillis();
   }
 
-  private String nextSiteId() {
-    // TODO: replace this linear search with binary search
-    double r = random.nextDouble();
-    for (Map.Entry<String, Double> entry : siteWeights.entrySet()) {
-      if (r < entry.getValue()) {
-        return entry.getKey();
-      }
+  private ImmutableSet<Long> nextPageIds(PageModel pageModel, int[] pages) {
+    ImmutableSet.Builder<Long> pageIds = ImmutableSet.builder();
+    for (int page : pages) {
+      pageIds.add(pageModel.getPageId(page));
     }
-    // Unreachable if siteWeights is created correctly; checking sum(weights)=1 should prevent this.
-    throw new RuntimeException("Unexpected problem randomly selecting a siteId");
+    return pageIds.build();
   }
 
-  private ImmutableSet<Long> nextPages(SiteConfig siteConfig) {
-    ImmutableSet.Builder<Long> pages = ImmutableSet.builder();
-    for (Map.Entry<String, PageConfig> entry : siteConfig.getPages().entrySet()) {
-      PageConfig pageConfig = entry.getValue();
-      double r = random.nextDouble();
-      if (r < pageConfig.getWeight()) {
-        pages.add(Long.parseLong(entry.getKey()));
-      }
+  private long[] nextPageIdArray(PageModel pageModel, int[] pages) {
+    long[] pageIds = new long[pages.length];
+    for (int i = 0; i < pages.length; i++) {
+      pageIds[i] = pageModel.getPageId(pages[i]);
+    }
+    return pageIds;
+  }
+
+  private long[] unionTags(PageModel pageModel, int[] pages) {
+    if (seenTags.length < pageModel.getUnionWords()) {
+      seenTags = new long[pageModel.getUnionWords()];
     }
-    return pages.build();
+    return pageModel.unionTags(pages, seenTags);
   }
 
-  private ImmutableSet<Long> nextTags(SiteConfig siteConfig, Set<Long> pages) {
+  private ImmutableSet<Long> nextTags(PageModel pageModel, int[] pages) {
     ImmutableSet.Builder<Long> tags = ImmutableSet.builder();
-    Map<String, PageConfig> pageConfigs = siteConfig.getPages();
-    for (Long pageId : pages) {
-      PageConfig pageConfig = pageConfigs.get(String.valueOf(pageId));
-      tags.addAll(pageConfig.getTags());
+    for (int page : pages) {
+      for (int tag = pageModel.getFirstTag(page); tag < pageModel.getTagEnd(page); tag++) {
+        tags.add(description.getTag(tag));
+      }
     }
     return tags.build();
   }
 
-  private static Map<String, Double> parseSiteWeights(Map<String, SiteConfig> configs) {
-    double sum = 0;
-    ImmutableMap.Builder<String, Double> siteWeights = ImmutableMap.builder();
-    for (Map.Entry<String, SiteConfig> entry : configs.entrySet()) {
-      sum += entry.getValue().getWeight();
-      siteWeights.put(entry.getKey(), sum);
-    }
-    if (sum != 1) {
+  private static int getPageSetCacheSize() {
+    String size = JMeterUtils.getPropDefault(PAGE_SET_CACHE_SIZE_PROPERTY, System.getProperty(PAGE_SET_CACHE_SIZE_PROPERTY));
+    return size == null ? DEFAULT_PAGE_SET_CACHE_SIZE : Integer.parseInt(size.trim());
+  }
+
+  private static void checkSiteWeights(double[] weights) {
+    if (Math.abs(WeightedSampler.sum(weights) - 1) > SITE_WEIGHT_TOLERANCE) {
       throw new RuntimeException("Site weights must sum to unity");
     }
-    return siteWeights.build();
   }
 
-  private static Map<String, SiteConfig> parseSiteConfigs(String config) {
+  private static TagserveDescription parseDescription(@Nullable String config) {
     try {
-      return gson.fromJson(config, SITE_CONFIGS_TYPE);
-    } catch (JsonParseException e) {
+      return TagserveDescription.parseJson(new StringReader(Strings.nullToEmpty(config)));
+    } catch (Exception e) {
       log.fatalError("Problem parsing json from config:\n" + config, e);
       throw Throwables.propagate(e);
     }
   }
-}
\ No newline at end of file
+
+  private static TagserveDescription readDescription(File file) {
+    try {
+      return TagserveDescription.read(file);
+    } catch (Exception e) {
+      log.fatalError("Problem reading Load Description from " + file, e);
+      throw Throwables.propagate(e);
+    }
+  }
+}
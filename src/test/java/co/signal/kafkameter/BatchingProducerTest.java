@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import kafka.message.NoCompressionCodec$;
+import kafka.producer.KeyedMessage;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Verifies that a {@link BatchingProducer} whose background thread fails completes the messages
+ * it holds with the failure and then fails every send, rather than leaving senders blocked.
+ */
+public class BatchingProducerTest {
+
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  private final Queue<PendingMessage> completions = new ConcurrentLinkedQueue<PendingMessage>();
+  private final Error codecFailure = new UnsatisfiedLinkError("no snappyjava in java.library.path");
+  private final BatchingProducer producer = new BatchingProducer(new NullTransport(), 10, 1, 100,
+      new Compression.Estimator(NoCompressionCodec$.MODULE$, 0) {
+        @Override
+        double ratio(List<byte[]> messages) {
+          throw codecFailure;
+        }
+      });
+
+  @After
+  public void tearDown() {
+    producer.close();
+  }
+
+  @Test
+  public void completesBatchAndFailsLaterSendsOnFatalFailure() throws Exception {
+    producer.send(newMessage());
+    PendingMessage completed = awaitCompletion();
+    assertNotNull(completed.getException());
+    assertSame(codecFailure, completed.getException().getCause());
+
+    try {
+      producer.send(newMessage());
+      fail("send after a fatal failure should fail");
+    } catch (IllegalStateException e) {
+      assertSame(codecFailure, e.getCause().getCause());
+    }
+    assertEquals(0, completions.size());
+  }
+
+  private PendingMessage newMessage() {
+    return new PendingMessage("topic", 1L, new byte[] { 1, 2, 3 }, completions);
+  }
+
+  private PendingMessage awaitCompletion() throws InterruptedException {
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+    PendingMessage message;
+    while ((message = completions.poll()) == null) {
+      if (System.nanoTime() > deadlineNanos) {
+        fail("message was never completed");
+      }
+      TimeUnit.MILLISECONDS.sleep(1);
+    }
+    return message;
+  }
+
+  private static class NullTransport implements Transport {
+    @Override
+    public void send(KeyedMessage<Long, byte[]> message) {}
+
+    @Override
+    public void send(List<KeyedMessage<Long, byte[]>> messages) {}
+
+    @Override
+    public void close() {}
+  }
+}
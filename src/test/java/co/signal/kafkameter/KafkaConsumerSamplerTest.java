@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Properties;
+
+import kafka.server.KafkaConfig;
+import kafka.server.KafkaServer;
+import kafka.utils.SystemTime$;
+
+import org.apache.jmeter.config.Arguments;
+import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterVariables;
+import org.apache.zookeeper.server.NIOServerCnxn;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Sends messages through the {@link KafkaProducerSampler} to an embedded single-node broker and
+ * verifies the end-to-end latency which the {@link KafkaConsumerSampler} measures for them.
+ */
+public class KafkaConsumerSamplerTest {
+
+  private static final int MESSAGES = 200;
+  private static final int MAX_SAMPLES = 30;
+
+  /**
+   * How far in the past the JSON messages are stamped, which every latency must exceed.
+   */
+  private static final long JSON_AGE_MILLIS = 5000;
+
+  private static File dir;
+  private static NIOServerCnxn.Factory zookeeper;
+  private static KafkaServer broker;
+  private static String zookeeperConnect;
+  private static String brokerList;
+
+  @BeforeClass
+  public static void startBroker() throws Exception {
+    dir = File.createTempFile("kafkameter", "");
+    assertTrue(dir.delete() && dir.mkdir());
+    int zookeeperPort = freePort();
+    zookeeper = new NIOServerCnxn.Factory(new InetSocketAddress(zookeeperPort));
+    zookeeper.startup(new ZooKeeperServer(new File(dir, "zookeeper"), new File(dir, "zookeeper"), 2000));
+    zookeeperConnect = "localhost:" + zookeeperPort;
+
+    int brokerPort = freePort();
+    Properties props = new Properties();
+    props.put("broker.id", "0");
+    props.put("port", String.valueOf(brokerPort));
+    props.put("log.dir", new File(dir, "kafka").getPath());
+    props.put("zookeeper.connect", zookeeperConnect);
+    props.put("num.partitions", "2");
+    broker = new KafkaServer(new KafkaConfig(props), SystemTime$.MODULE$);
+    broker.startup();
+    brokerList = "localhost:" + brokerPort;
+  }
+
+  @AfterClass
+  public static void stopBroker() {
+    if (broker != null) {
+      broker.shutdown();
+      broker.awaitShutdown();
+    }
+    if (zookeeper != null) {
+      zookeeper.shutdown();
+    }
+    delete(dir);
+  }
+
+  @Before
+  public void setUp() {
+    JMeterContextService.getContext().setVariables(new JMeterVariables());
+  }
+
+  @Test
+  public void measuresLatencyFromJsonTimestamp() {
+    long sentMillis = System.currentTimeMillis() - JSON_AGE_MILLIS;
+    produce("json", "{\"siteId\":\"site\",\"timestamp\":" + sentMillis + "}", false);
+    Latencies latencies = consume("json", MessageTimestamps.JSON);
+    assertEquals(MESSAGES, latencies.count);
+    assertTrue("min " + latencies.minMicros, latencies.minMicros >= JSON_AGE_MILLIS * 1000);
+    assertTrue("max " + latencies.maxMicros, latencies.maxMicros < (JSON_AGE_MILLIS + MAX_SAMPLES * 1000) * 1000);
+  }
+
+  @Test
+  public void measuresLatencyFromHeader() {
+    long startMillis = System.currentTimeMillis();
+    produce("header", "{\"siteId\":\"site\"}", true);
+    Latencies latencies = consume("header", MessageTimestamps.HEADER);
+    assertEquals(MESSAGES, latencies.count);
+    assertTrue("min " + latencies.minMicros, latencies.minMicros >= 0);
+    assertTrue("max " + latencies.maxMicros,
+        latencies.maxMicros <= (System.currentTimeMillis() - startMillis) * 1000);
+  }
+
+  private void produce(String topic, String message, boolean timestampHeader) {
+    Arguments args = new KafkaProducerSampler().getDefaultParameters();
+    set(args, "kafka_brokers", brokerList);
+    set(args, "kafka_topic", topic);
+    set(args, "kafka_key", "1");
+    set(args, "kafka_message", message);
+    set(args, "kafka_timestamp_header", String.valueOf(timestampHeader));
+    JavaSamplerContext context = new JavaSamplerContext(args);
+    KafkaProducerSampler producer = new KafkaProducerSampler();
+    producer.setupTest(context);
+    try {
+      for (int i = 0; i < MESSAGES; i++) {
+        SampleResult result = producer.runTest(context);
+        assertTrue(result.getResponseMessage(), result.isSuccessful());
+      }
+    } finally {
+      producer.teardownTest(context);
+    }
+  }
+
+  private Latencies consume(String topic, String format) {
+    Arguments args = new KafkaConsumerSampler().getDefaultParameters();
+    set(args, "kafka_zookeeper", zookeeperConnect);
+    set(args, "kafka_topic", topic);
+    set(args, "kafka_group_id", "kafkameter-test-" + topic);
+    set(args, "kafka_consumer_threads", "2");
+    set(args, "kafka_auto_offset_reset", "smallest");
+    set(args, "kafka_timestamp_format", format);
+    JavaSamplerContext context = new JavaSamplerContext(args);
+    KafkaConsumerSampler consumer = new KafkaConsumerSampler();
+    consumer.setupTest(context);
+    Latencies latencies = new Latencies();
+    try {
+      for (int i = 0; i < MAX_SAMPLES && latencies.count < MESSAGES; i++) {
+        SampleResult result = consumer.runTest(context);
+        assertTrue(result.getResponseMessage(), result.isSuccessful());
+        JMeterVariables variables = JMeterContextService.getContext().getVariables();
+        long consumed = Long.parseLong(variables.get("kafka_consumed_messages"));
+        if (consumed > 0) {
+          latencies.count += consumed;
+          latencies.minMicros = Math.min(latencies.minMicros, Long.parseLong(variables.get("kafka_e2e_min_latency_us")));
+          latencies.maxMicros = Math.max(latencies.maxMicros, Long.parseLong(variables.get("kafka_e2e_max_latency_us")));
+        }
+      }
+    } finally {
+      consumer.teardownTest(context);
+    }
+    return latencies;
+  }
+
+  private static void set(Arguments args, String name, String value) {
+    args.removeArgument(name);
+    args.addArgument(name, value);
+  }
+
+  private static int freePort() throws IOException {
+    ServerSocket socket = new ServerSocket(0);
+    try {
+      return socket.getLocalPort();
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static class Latencies {
+    private long count;
+    private long minMicros = Long.MAX_VALUE;
+    private long maxMicros;
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.kafkameter;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import co.signal.loadgen.SyntheticLoadGenerator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the {@link LoadDriver} against the null transport and verifies that a closed loop ramps
+ * up its load, rather than idling until the last client has started.
+ */
+public class LoadDriverTest {
+
+  private static final int CLIENTS = 100;
+  private static final int RAMP_SECONDS = 4;
+
+  private File description;
+
+  @Before
+  public void setUp() throws Exception {
+    description = File.createTempFile("kafkameter", ".txt");
+    Files.write("constant", description, Charsets.UTF_8);
+  }
+
+  @After
+  public void tearDown() {
+    description.delete();
+  }
+
+  @Test
+  public void throughputGrowsDuringRamp() throws Exception {
+    Map<String, String> options = new LinkedHashMap<String, String>(LoadDriver.DEFAULT_OPTIONS);
+    options.put("transport", Transports.NULL);
+    options.put("clients", String.valueOf(CLIENTS));
+    options.put("workers", "1");
+    options.put("ramp-s", String.valueOf(RAMP_SECONDS));
+    options.put("duration-s", String.valueOf(RAMP_SECONDS + 1));
+    options.put("report-interval-s", "60");
+    options.put("linger-ms", "5");
+    final LoadDriver driver = new LoadDriver(ConstantGenerator.class.getName(), description.getPath(), options);
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          driver.run();
+        } catch (Exception e) {
+          failure.set(e);
+        }
+      }
+    };
+    thread.start();
+
+    // compare the second and fourth seconds of the ramp, with a quarter and three quarters of the clients started
+    TimeUnit.MILLISECONDS.sleep(1000);
+    long early = -driver.getAcknowledged();
+    TimeUnit.MILLISECONDS.sleep(1000);
+    early += driver.getAcknowledged();
+    TimeUnit.MILLISECONDS.sleep(1000);
+    long late = -driver.getAcknowledged();
+    TimeUnit.MILLISECONDS.sleep(1000);
+    late += driver.getAcknowledged();
+    thread.join();
+
+    assertTrue(String.valueOf(failure.get()), failure.get() == null);
+    assertTrue("clients started early should send again during the ramp: " + early, early > CLIENTS);
+    assertTrue("throughput should grow during the ramp: " + early + " then " + late, late > 2 * early);
+  }
+
+  /**
+   * Generates the same message forever.
+   */
+  public static class ConstantGenerator implements SyntheticLoadGenerator {
+
+    public ConstantGenerator(String ignored) {}
+
+    @Override
+    public String nextMessage() {
+      return "{\"siteId\":\"site\"}";
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.util.Arrays;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+import co.signal.loadgen.example.TagRequestMetrics;
+import co.signal.loadgen.example.TagRequestMetricsProtobufMarshaller;
+
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterVariables;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies that binary marshalled messages reach the sampler intact through the {@link LoadGenerator}
+ * with its default settings, whether generated on the JMeter thread or ahead of time.
+ */
+public class LoadGeneratorTest {
+
+  private static final String VARIABLE = "message";
+
+  /**
+   * A model whose Protocol Buffers encoding is not valid UTF-8, so that decoding it as a String
+   * would replace some of its bytes.
+   */
+  private static final TagRequestMetrics MODEL = new TagRequestMetrics(
+      "site", 1792222670558L, ImmutableSet.of(128L, 300L), ImmutableSet.of(1L << 40));
+
+  private final byte[] expected = new TagRequestMetricsProtobufMarshaller().marshal(MODEL);
+
+  private File description;
+  private JMeterVariables variables;
+
+  @Before
+  public void setUp() throws Exception {
+    assertFalse(Arrays.equals(expected, new String(expected, Charsets.UTF_8).getBytes(Charsets.UTF_8)));
+    description = File.createTempFile("kafkameter", ".txt");
+    Files.write("constant", description, Charsets.UTF_8);
+    variables = new JMeterVariables();
+    JMeterContextService.getContext().setVariables(variables);
+  }
+
+  @After
+  public void tearDown() {
+    description.delete();
+  }
+
+  @Test
+  public void exportsMarshalledBytesIntact() {
+    assertExportsIntact(newLoadGenerator());
+  }
+
+  @Test
+  public void exportsPreGeneratedMarshalledBytesIntact() {
+    LoadGenerator generator = newLoadGenerator();
+    generator.setBufferCapacity(16);
+    assertExportsIntact(generator);
+  }
+
+  private LoadGenerator newLoadGenerator() {
+    LoadGenerator generator = new LoadGenerator();
+    generator.setClassName(ConstantModelGenerator.class.getName());
+    generator.setFileName(description.getPath());
+    generator.setVariableName(VARIABLE);
+    generator.setMarshallerClassName(TagRequestMetricsProtobufMarshaller.class.getName());
+    return generator;
+  }
+
+  private void assertExportsIntact(LoadGenerator generator) {
+    try {
+      for (int i = 0; i < 3; i++) {
+        generator.iterationStart(null);
+        assertArrayEquals(expected, (byte[]) variables.getObject(VARIABLE));
+        MessageSource source = (MessageSource) variables.getObject(VARIABLE + LoadGenerator.SOURCE_VARIABLE_SUFFIX);
+        assertArrayEquals(expected, source.nextMessageBytes());
+      }
+    } finally {
+      generator.threadFinished();
+    }
+  }
+
+  /**
+   * Generates the same model forever.
+   */
+  public static class ConstantModelGenerator implements ModelLoadGenerator<TagRequestMetrics> {
+
+    public ConstantModelGenerator(String ignored) {}
+
+    @Override
+    public Class<TagRequestMetrics> getModelType() {
+      return TagRequestMetrics.class;
+    }
+
+    @Override
+    public TagRequestMetrics nextModel() {
+      return MODEL;
+    }
+
+    @Override
+    public String nextMessage() {
+      return MODEL.toString();
+    }
+  }
+}
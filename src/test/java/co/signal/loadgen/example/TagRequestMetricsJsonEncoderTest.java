@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Signal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.signal.loadgen.example;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.Gson;
+
+import org.junit.Test;
+
+/**
+ * Verifies that {@link TagRequestMetricsJsonEncoder} writes exactly the bytes of a default {@link Gson}.
+ */
+public class TagRequestMetricsJsonEncoderTest {
+
+  private static final long SEED = 20261017L;
+
+  private final TagRequestMetricsJsonMarshaller gson = new TagRequestMetricsJsonMarshaller(new Gson());
+  private final TagRequestMetricsJsonEncoder encoder = new TagRequestMetricsJsonEncoder();
+
+  @Test
+  public void matchesGsonOnEscapedCharacters() {
+    assertMatches("quote\" backslash\\ slash/ tab\t newline\n return\r backspace\b formfeed\f");
+    assertMatches("html <script>&amp;='x'</script>");
+    assertMatches("controls \u0000\u0001\u001f and delete \u007f");
+    assertMatches("separators \u2028 and \u2029");
+  }
+
+  @Test
+  public void matchesGsonOnMultiByteCharacters() {
+    assertMatches("latin \u00e9\u00ff, greek \u03a9, cjk \u4e2d\u6587, bmp edge \uffff");
+    assertMatches("pairs \ud83d\ude00 and \udbff\udfff");
+  }
+
+  @Test
+  public void matchesGsonOnUnpairedSurrogates() {
+    assertMatches("lone high \ud83d then text");
+    assertMatches("lone low \ude00 then text");
+    assertMatches("reversed \ude00\ud83d");
+    assertMatches("trailing high \ud83d");
+  }
+
+  @Test
+  public void matchesGsonOnNullAndEmptyFields() {
+    assertMatches(new TagRequestMetrics(null, 0, null, null));
+    assertMatches(new TagRequestMetrics("", -1, Collections.<Long>emptySet(), Collections.<Long>emptySet()));
+    assertMatches(new TagRequestMetrics(null, Long.MIN_VALUE, ImmutableSet.of(Long.MIN_VALUE, Long.MAX_VALUE, 0L), null));
+    assertMatches(new TagRequestMetrics("site", Long.MAX_VALUE, null, new LongArraySet(new long[] { 1, -2, 3 })));
+    assertMatches(new TagRequestMetrics("site", 1405632000000L, new LongArraySet(new long[0]), ImmutableSet.of(7L)));
+  }
+
+  @Test
+  public void matchesGsonOnRandomMessages() {
+    Random random = new Random(SEED);
+    for (int i = 0; i < 100000; i++) {
+      assertMatches(new TagRequestMetrics(randomString(random), random.nextLong(), randomLongs(random), randomLongs(random)));
+    }
+  }
+
+  private void assertMatches(String siteId) {
+    assertMatches(new TagRequestMetrics(siteId, 1405632000000L, ImmutableSet.of(123L), ImmutableSet.of(1L, 2L)));
+  }
+
+  /**
+   * Compares the UTF-8 bytes rather than Strings, which would hide how unpaired surrogates are encoded.
+   */
+  private void assertMatches(TagRequestMetrics metrics) {
+    byte[] expected = gson.marshal(metrics).getBytes(Charsets.UTF_8);
+    byte[] actual = encoder.marshal(metrics);
+    assertArrayEquals("gson:    " + new String(expected, Charsets.UTF_8) + "\nencoder: " + new String(actual, Charsets.UTF_8),
+        expected, actual);
+  }
+
+  private static String randomString(Random random) {
+    if (random.nextInt(20) == 0) {
+      return null;
+    }
+    char[] chars = new char[random.nextInt(12)];
+    for (int i = 0; i < chars.length; i++) {
+      switch (random.nextInt(4)) {
+        case 0: chars[i] = (char) random.nextInt(0x80); break;
+        case 1: chars[i] = (char) ('a' + random.nextInt(26)); break;
+        case 2: chars[i] = "<>&='\"\\\u2028\u2029".charAt(random.nextInt(9)); break;
+        default: chars[i] = (char) random.nextInt(Character.MAX_VALUE + 1); break;
+      }
+    }
+    return new String(chars);
+  }
+
+  private static Set<Long> randomLongs(Random random) {
+    if (random.nextInt(20) == 0) {
+      return null;
+    }
+    ImmutableSet.Builder<Long> values = ImmutableSet.builder();
+    for (int i = random.nextInt(8); i > 0; i--) {
+      switch (random.nextInt(4)) {
+        case 0: values.add(random.nextLong()); break;
+        case 1: values.add((long) random.nextInt(1000)); break;
+        case 2: values.add(Long.MIN_VALUE); break;
+        default: values.add(-(long) random.nextInt(1000)); break;
+      }
+    }
+    return values.build();
+  }
+}